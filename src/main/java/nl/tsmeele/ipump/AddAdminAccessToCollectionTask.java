@@ -8,10 +8,18 @@ import nl.tsmeele.myrods.high.IrodsUser;
 
 public class AddAdminAccessToCollectionTask extends Task {
 	private Collection coll;
+	private int subtreeSize;
 
-	public AddAdminAccessToCollectionTask(IrodsUser clientUser, boolean runAsAgent, String precondition, Collection coll) {
-		super(clientUser, runAsAgent, precondition);
+	public AddAdminAccessToCollectionTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, Collection coll, int subtreeSize) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.coll = coll;
+		this.subtreeSize = subtreeSize;
+	}
+	
+	@Override
+	public long priority() {
+		// collections with most objects underneath are made available first
+		return COLLECTION_PRIORITY + subtreeSize;
 	}
 
 	@Override
@@ -39,7 +47,7 @@ public class AddAdminAccessToCollectionTask extends Task {
 		Log.debug("Own access for rodsadmin added to " + destCollPath);
 
 		// unblock any tasks that require admin access to this collection set as precondition
-		context.scheduler.unblock(Task.ADMIN_HAS_ACCESS + coll.getPath());
+		stepDone(Precondition.ADMIN_HAS_ACCESS, coll.getPath());
 		return null;
 	}
 
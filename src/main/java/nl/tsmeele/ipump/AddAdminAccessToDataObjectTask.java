@@ -9,11 +9,17 @@ import nl.tsmeele.myrods.high.IrodsUser;
 public class AddAdminAccessToDataObjectTask extends Task {
 	private DataObject dataObj;
 
-	public AddAdminAccessToDataObjectTask(IrodsUser clientUser, boolean runAsAgent, String precondition, DataObject dataObj) {
-		super(clientUser, runAsAgent, precondition);
+	public AddAdminAccessToDataObjectTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, DataObject dataObj) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.dataObj = dataObj;
 	}
 
+	@Override
+	public long priority() {
+		// completes a transferred data object, ahead of new transfers
+		return FOLLOW_UP_PRIORITY;
+	}
+
 	@Override
 	public Boolean call() throws Exception {
 		String destPath = context.destCollectionPath(dataObj) + "/" + dataObj.dataName;
@@ -38,7 +44,7 @@ public class AddAdminAccessToDataObjectTask extends Task {
 		Log.debug("Own access for rodsadmin added to " + destPath);
 
 		// unblock any tasks that require admin access to this data object set as precondition
-		context.scheduler.unblock(Task.ADMIN_HAS_ACCESS + dataObj.getPath());
+		stepDone(Precondition.ADMIN_HAS_ACCESS, dataObj.getPath());
 		return null;
 	}
 
@@ -0,0 +1,149 @@
+package nl.tsmeele.ipump;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.api.Kw;
+import nl.tsmeele.myrods.api.ModAccessControlInp;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * AddAdminAccessToDataObjectsTask adds admin access to a group of data objects that reside in
+ * the same collection, once all of them exist at destination.
+ *
+ * The scheduler reports each member that lands at destination, or fails to. The task becomes
+ * runnable once the producer has sealed the group and all members have been reported.
+ *
+ * If the group holds all data objects of a collection without subcollections, access is added
+ * with a single recursive request on the destination collection. Otherwise the task adds access
+ * to each member that has landed.
+ *
+ * @author ton
+ *
+ */
+public class AddAdminAccessToDataObjectsTask extends Task {
+	private List<DataObject> dataObjs = new ArrayList<DataObject>();
+	private List<Integer> objIds = new ArrayList<Integer>();
+	// position of each member in the group, keyed on object id
+	private HashMap<Integer, Integer> members = new HashMap<Integer, Integer>();
+	private BitSet landed = new BitSet();
+	private int pending = 0;
+	private boolean sealed = false;
+	private boolean wholeCollection = false;
+	// members before this index have been processed
+	private int processed = 0;
+
+	public AddAdminAccessToDataObjectsTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId) {
+		super(clientUser, runAsAgent, precondition, objId);
+	}
+
+	public synchronized void add(DataObject dataObj, int objId) {
+		members.put(objId, dataObjs.size());
+		dataObjs.add(dataObj);
+		objIds.add(objId);
+		pending++;
+	}
+
+	public synchronized int size() {
+		return dataObjs.size();
+	}
+
+	/**
+	 * Reports that a member has landed at destination, or has been abandoned.
+	 * @return true if the task has become runnable
+	 */
+	public synchronized boolean arrived(int objId, boolean exists) {
+		Integer member = members.get(objId);
+		if (member == null) {
+			return false;
+		}
+		if (exists) {
+			landed.set(member);
+		}
+		pending--;
+		return sealed && pending == 0;
+	}
+
+	/**
+	 * Closes the group for new members.
+	 * @param wholeCollection	true if the group holds all data objects of a collection without subcollections
+	 * @return true if the task has become runnable
+	 */
+	public synchronized boolean seal(boolean wholeCollection) {
+		sealed = true;
+		this.wholeCollection = wholeCollection;
+		return pending == 0;
+	}
+
+	@Override
+	public long priority() {
+		// completes a transferred data object, ahead of new transfers
+		return FOLLOW_UP_PRIORITY;
+	}
+
+	@Override
+	public Boolean call() throws Exception {
+		if (landed.isEmpty()) {
+			return null;
+		}
+		String destCollPath = context.destCollectionPath(dataObjs.get(0));
+		Log.debug("TASK ADD ADMIN ACCESS TO " + landed.cardinality() + " DATAOBJECTS\nFROM=" + dataObjs.get(0).collName + "\n  TO=" + destCollPath);
+
+		// make sure this task runs as rodsadmin
+		if (runAsAgent) {
+			Log.debug("Resubmitting task AddAdminAccessToDataObjects as rodsadmin for collection " + dataObjs.get(0).collName);
+			rescheduleTaskAsAdmin();
+			return null;
+		}
+
+		if (wholeCollection) {
+			// ensure that admin has access to all objects in the collection
+			ModAccessControlInp destAdminAccess = new ModAccessControlInp(1, Kw.MOD_ADMIN_MODE_PREFIX + Kw.ACCESS_OWN,
+					context.ctx.dUserName, context.ctx.dZone, destCollPath);
+			context.dest.rcModAccessControl(destAdminAccess);
+			if (context.dest.error) {
+				Log.error("Unable to add ACL for admin access on data objects in collection '" + destCollPath + "', iRODS error = " + context.dest.intInfo);
+				// failed, stop here
+				return false;
+			}
+			Log.debug("Own access for rodsadmin added to data objects in " + destCollPath);
+		}
+
+		for (; processed < dataObjs.size(); processed++) {
+			if (!landed.get(processed)) continue;
+			DataObject dataObj = dataObjs.get(processed);
+			if (!wholeCollection) {
+				String destPath = destCollPath + "/" + dataObj.dataName;
+				ModAccessControlInp destAdminAccess = new ModAccessControlInp(0, Kw.MOD_ADMIN_MODE_PREFIX + Kw.ACCESS_OWN,
+						context.ctx.dUserName, context.ctx.dZone, destPath);
+				context.dest.rcModAccessControl(destAdminAccess);
+				if (context.dest.error) {
+					Log.error("Unable to add ACL for admin access on data object '" + destPath + "', iRODS error = " + context.dest.intInfo);
+					context.scheduler.abandonObject(objIds.get(processed));
+					continue;
+				}
+			}
+			// unblock any tasks that require admin access to this data object set as precondition
+			stepDone(Precondition.ADMIN_HAS_ACCESS, objIds.get(processed), dataObj.getPath());
+		}
+		return null;
+	}
+
+	@Override
+	public int[] objectIds() {
+		List<Integer> remaining = new ArrayList<Integer>();
+		for (int i = landed.nextSetBit(processed); i >= 0; i = landed.nextSetBit(i + 1)) {
+			remaining.add(objIds.get(i));
+		}
+		return remaining.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	public String toString() {
+		return super.toString() + " objs = " + dataObjs.size() + " in " + (dataObjs.isEmpty() ? "" : dataObjs.get(0).collName);
+	}
+
+}
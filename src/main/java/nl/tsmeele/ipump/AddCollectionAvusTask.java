@@ -5,18 +5,15 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import nl.tsmeele.log.Log;
-import nl.tsmeele.myrods.api.KeyValPair;
-import nl.tsmeele.myrods.api.Kw;
-import nl.tsmeele.myrods.api.ModAVUMetadataInp;
 import nl.tsmeele.myrods.high.AVU;
 import nl.tsmeele.myrods.high.Collection;
 import nl.tsmeele.myrods.high.IrodsUser;
 
-public class AddCollectionAvusTask extends nl.tsmeele.ipump.Task {
+public class AddCollectionAvusTask extends Task {
 	private Collection coll;
 
-	public AddCollectionAvusTask(IrodsUser clientUser, boolean runAsAgent, String precondition, Collection coll) {
-		super(clientUser, runAsAgent, precondition);
+	public AddCollectionAvusTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, Collection coll) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.coll = coll;
 	}
 
@@ -31,7 +28,7 @@ public class AddCollectionAvusTask extends nl.tsmeele.ipump.Task {
 			return null;
 		}
 		
-		List<AVU> avus = context.source.getAvus("-C", coll.getPath(), true);
+		List<AVU> avus = context.ctx.avuCache.collectionAvus(context.source, coll);
 
 		if (isVaultSpace(coll.getPath())) {
 			// VAULT METADATA
@@ -52,41 +49,18 @@ public class AddCollectionAvusTask extends nl.tsmeele.ipump.Task {
 		
 		
 		String destPath = context.destCollectionPath(coll);
-		KeyValPair options = new KeyValPair();
-		options.put(Kw.ADMIN_KW, "");
-		int avuError = 0;
-		for (AVU avu : avus) {
-			Log.debug("Collection AVU to be added: " + avu.toString());
-			List<String> args = new ArrayList<String>();
-			if (avu.name.equals("org_status") || avu.name.equals("org_vault_status")) {
-				// Yoda policy requires single value with these AVU's, refuses 'add' operation
-				args.add("set");
-			} else {
-				args.add("add");
-			}
-			args.add("-C");
-			args.add(destPath);
-			args.add(avu.name);
-			args.add(avu.value);
-			args.add(avu.units);
-			ModAVUMetadataInp meta = new ModAVUMetadataInp(args, options);
-			context.dest.rcModAVUMetadata(meta);
-			// try add the avu to target object, error -806000 = "CAT_SQL_ERR" indicates avu already present
-			if (context.dest.error && context.dest.intInfo != -806000) {
-				avuError = context.dest.intInfo;
-			}
-		}
+		int avuError = context.applyAvus("-C", destPath, avus);
 		
 		if (avuError != 0) {
 			Log.error("Unable to add one or more AVU's to " + destPath + " iRODS error = " + avuError);
 			return false;
 		}
 		
-		context.scheduler.unblock(Task.AVU_ADDED + coll.getPath());
+		stepDone(Precondition.AVU_ADDED, coll.getPath());
 		return null;
 	}
 	
-	private static List<AVU> transformVaultMetadata(List<AVU> inp) {
+	static List<AVU> transformVaultMetadata(List<AVU> inp) {
 		List<AVU> out = new ArrayList<AVU>();
 		for (AVU avu : inp) {
 			String name = avu.name;
@@ -121,12 +95,5 @@ public class AddCollectionAvusTask extends nl.tsmeele.ipump.Task {
 		return out;
 	}	
 
-	private static boolean isVaultSpace(String path) {
-		String[] components = path.split("/");
-		if (components.length >= 4 && components[3].startsWith("vault-")) {
-			return true;
-		}
-		return false;
-	}
 	
 }
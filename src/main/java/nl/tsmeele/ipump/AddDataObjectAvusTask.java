@@ -5,9 +5,6 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import nl.tsmeele.log.Log;
-import nl.tsmeele.myrods.api.KeyValPair;
-import nl.tsmeele.myrods.api.Kw;
-import nl.tsmeele.myrods.api.ModAVUMetadataInp;
 import nl.tsmeele.myrods.high.AVU;
 import nl.tsmeele.myrods.high.DataObject;
 import nl.tsmeele.myrods.high.IrodsUser;
@@ -15,11 +12,17 @@ import nl.tsmeele.myrods.high.IrodsUser;
 public class AddDataObjectAvusTask extends Task {
 	private DataObject dataObj;
 
-	public AddDataObjectAvusTask(IrodsUser clientUser, boolean runAsAgent, String precondition, DataObject dataObj) {
-		super(clientUser, runAsAgent, precondition);
+	public AddDataObjectAvusTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, DataObject dataObj) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.dataObj = dataObj;
 	}
 
+	@Override
+	public long priority() {
+		// completes a transferred data object, ahead of new transfers
+		return FOLLOW_UP_PRIORITY;
+	}
+
 	@Override
 	public Boolean call() throws Exception {
 		Log.debug("TASK ADD AVUs TO DATA OBJECT " +  dataObj.getPath());
@@ -32,7 +35,7 @@ public class AddDataObjectAvusTask extends Task {
 		}
 
 		// find all AVUs on source object
-		List<AVU> avus = context.source.getAvus("-d", dataObj.getPath(), true);
+		List<AVU> avus = context.ctx.avuCache.dataObjectAvus(context.source, dataObj);
 		
 		if (isVaultSpace(dataObj.getPath())) {
 			// VAULT METADATA
@@ -48,25 +51,7 @@ public class AddDataObjectAvusTask extends Task {
 		}
 		
 		String destPath = context.destCollectionPath(dataObj) + "/" + dataObj.dataName;
-		KeyValPair options = new KeyValPair();
-		options.put(Kw.ADMIN_KW, "");
-		int avuError = 0;
-		for (AVU avu : avus) {
-			Log.debug("AVU to be set on object " + avu.toString());
-			List<String> args = new ArrayList<String>();
-			args.add("add");
-			args.add("-d");
-			args.add(destPath);
-			args.add(avu.name);
-			args.add(avu.value);
-			args.add(avu.units);
-			ModAVUMetadataInp meta = new ModAVUMetadataInp(args, options);
-			context.dest.rcModAVUMetadata(meta);
-			// try add the avu to target object, error -806000 = "CAT_SQL_ERR" indicates avu already present
-			if (context.dest.error && context.dest.intInfo != -806000) {
-				avuError = context.dest.intInfo;
-			}
-		}
+		int avuError = context.applyAvus("-d", destPath, avus);
 		
 		if (avuError != 0) {
 			Log.error("Unable to add one or more AVU's to " + destPath + " iRODS error = " + avuError);
@@ -74,17 +59,9 @@ public class AddDataObjectAvusTask extends Task {
 		}
 		
 		// unblock queued tasks that have this object as precondition
-		context.scheduler.unblock(Task.AVU_ADDED + dataObj.getPath());
+		stepDone(Precondition.AVU_ADDED, dataObj.getPath());
 		return null;
 	}
 
-	private static boolean isVaultSpace(String path) {
-		String[] components = path.split("/");
-		if (components.length >= 4 && components[3].startsWith("vault-")) {
-			return true;
-		}
-		return false;
-	}
-
 	
 }
@@ -0,0 +1,132 @@
+package nl.tsmeele.ipump;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.AVU;
+import nl.tsmeele.myrods.high.Collection;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.Hirods;
+import nl.tsmeele.myrods.high.IrodsObject;
+
+/**
+ * AvuCache holds the AVUs of objects on a server, so that the tasks that copy AVUs do not
+ * need a catalog request per object. A cache of source AVUs tells which AVUs to copy,
+ * a cache of destination AVUs tells which of these are already present.
+ *
+ * AVUs are prefetched per collection with a single paged query: the AVUs of all data objects
+ * in a collection, or the AVUs of all subcollections of a collection. The prefetch happens
+ * the first time a task asks for the AVUs of one of these objects.
+ * The cache is shared by all runners. Groups that have not been used recently are evicted
+ * once the cache holds more than a maximum number of AVUs, an evicted group is queried again
+ * if needed.
+ *
+ * A group reflects the objects at the time it was queried. This suffices as the AVUs of
+ * each object are copied only once per operation.
+ *
+ * @author ton
+ *
+ */
+public class AvuCache {
+	public static final int DEFAULT_MAX_ENTRIES = 1000000;
+	private static final List<AVU> NONE = Collections.emptyList();
+	private String label;
+	private int maxEntries;
+	private int entries = 0;
+	// groups of objects in order of last use, keyed on kind and collection path
+	private LinkedHashMap<String, HashMap<String, List<AVU>>> groups = new LinkedHashMap<String, HashMap<String, List<AVU>>>(16, 0.75f, true);
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong loads = new AtomicLong(0);
+
+	/**
+	 * @param label	name of the cache in statistics
+	 */
+	public AvuCache(String label, int maxEntries) {
+		this.label = label;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param hirods	connection to the server, used to prefetch the AVUs
+	 * @return AVUs of the data object
+	 */
+	public List<AVU> dataObjectAvus(Hirods hirods, DataObject dataObj) throws IOException {
+		return avus(hirods, "-d", dataObj.getPath());
+	}
+
+	/**
+	 * @param hirods	connection to the server, used to prefetch the AVUs
+	 * @return AVUs of the collection
+	 */
+	public List<AVU> collectionAvus(Hirods hirods, Collection coll) throws IOException {
+		return avus(hirods, "-C", coll.getPath());
+	}
+
+	/**
+	 * @param hirods	connection to the server, used to prefetch the AVUs
+	 * @param kind		"-d" for a data object, "-C" for a collection
+	 * @param path		path of the object
+	 * @return AVUs of the object
+	 */
+	public List<AVU> avus(Hirods hirods, String kind, String path) throws IOException {
+		HashMap<String, List<AVU>> group = group(hirods, kind, IrodsObject.parent(path));
+		if (group == null) {
+			return hirods.getAvus(kind, path, true);
+		}
+		// data objects are keyed on name, collections on path
+		return group.getOrDefault(kind.equals("-d") ? IrodsObject.basename(path) : path, NONE);
+	}
+
+	/**
+	 * @param kind		"-d" for the data objects in a collection, "-C" for its subcollections
+	 * @return AVUs of the group keyed on object, or null if the group cannot be queried
+	 */
+	private HashMap<String, List<AVU>> group(Hirods hirods, String kind, String collPath) throws IOException {
+		String key = kind + collPath;
+		HashMap<String, List<AVU>> group;
+		synchronized (this) {
+			group = groups.get(key);
+		}
+		if (group != null) {
+			hits.incrementAndGet();
+			return group;
+		}
+		// runners may query the same group at once, either result will do
+		group = kind.equals("-d") ? IrodsQuery.getDataObjectAvus(hirods, collPath) : IrodsQuery.getSubCollectionAvus(hirods, collPath);
+		if (group == null) {
+			return null;
+		}
+		loads.incrementAndGet();
+		int count = countOf(group);
+		synchronized (this) {
+			HashMap<String, List<AVU>> previous = groups.put(key, group);
+			entries += count - (previous == null ? 0 : countOf(previous));
+			Iterator<HashMap<String, List<AVU>>> it = groups.values().iterator();
+			// keep the group that we have just queried
+			while (entries > maxEntries && groups.size() > 1) {
+				entries -= countOf(it.next());
+				it.remove();
+			}
+		}
+		return group;
+	}
+
+	private static int countOf(HashMap<String, List<AVU>> group) {
+		int count = 1;
+		for (List<AVU> avus : group.values()) {
+			count += avus.size();
+		}
+		return count;
+	}
+
+	public void logStatistics() {
+		Log.debug(label + " AVU cache: " + loads.get() + " groups queried, " + hits.get() + " lookups served from cache");
+	}
+
+}
@@ -0,0 +1,83 @@
+package nl.tsmeele.ipump;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Checksum converts between digests computed on the client and checksums as iRODS stores them.
+ *
+ * iRODS stores a SHA-256 checksum as "sha2:" followed by the base64 encoded digest,
+ * and an MD5 checksum as the hex encoded digest.
+ *
+ * @author ton
+ *
+ */
+public class Checksum {
+	public static final String SHA256 = "sha256";
+	public static final String MD5 = "md5";
+	private static final String SHA2_PREFIX = "sha2:";
+
+	/**
+	 * @param algorithm	SHA256 or MD5
+	 * @return true if the algorithm is supported
+	 */
+	public static boolean isSupported(String algorithm) {
+		return SHA256.equals(algorithm) || MD5.equals(algorithm);
+	}
+
+	/**
+	 * Creates a digest that matches the scheme of an existing checksum.
+	 * @param checksum			checksum in iRODS format, or null if the object has no checksum
+	 * @param defaultAlgorithm	algorithm to use if the object has no checksum
+	 * @return digest, or null if the scheme of the checksum is not supported
+	 */
+	public static MessageDigest digestFor(String checksum, String defaultAlgorithm) {
+		String algorithm = defaultAlgorithm;
+		if (checksum != null) {
+			algorithm = checksum.startsWith(SHA2_PREFIX) ? SHA256 : checksum.matches("[0-9a-fA-F]{32}") ? MD5 : null;
+		}
+		if (algorithm == null) {
+			return null;
+		}
+		try {
+			return MessageDigest.getInstance(algorithm.equals(SHA256) ? "SHA-256" : "MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the checksum of a completed digest, in iRODS format
+	 */
+	public static String format(MessageDigest digest) {
+		byte[] value = digest.digest();
+		if (digest.getAlgorithm().equals("SHA-256")) {
+			return SHA2_PREFIX + Base64.getEncoder().encodeToString(value);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : value) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return true if two checksums in iRODS format have been computed with the same algorithm
+	 */
+	public static boolean sameScheme(String checksum, String other) {
+		return checksum.startsWith(SHA2_PREFIX) == other.startsWith(SHA2_PREFIX);
+	}
+
+	/**
+	 * @return true if two checksums in iRODS format denote the same digest
+	 */
+	public static boolean matches(String checksum, String other) {
+		if (checksum == null || other == null) {
+			return false;
+		}
+		// base64 is case sensitive, hex is not
+		return checksum.startsWith(SHA2_PREFIX) ? checksum.equals(other) : checksum.equalsIgnoreCase(other);
+	}
+
+}
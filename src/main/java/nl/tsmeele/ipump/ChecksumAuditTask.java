@@ -0,0 +1,142 @@
+package nl.tsmeele.ipump;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.api.DataObjInp;
+import nl.tsmeele.myrods.api.KeyValPair;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.Hirods;
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * ChecksumAuditTask verifies that a data object that has been transferred in an earlier operation
+ * holds the same content at source and destination.
+ *
+ * Both servers compute the checksum of their replica at the same time, the source call is made on
+ * a helper thread while the destination call is made by the runner. The checksums are computed anew
+ * from the stored data, a checksum registered earlier in the catalog is not trusted.
+ *
+ * A mismatch, or an object that cannot be checksummed, is recorded in the logfile as an ERROR.
+ * A verified object is recorded as AUDITED, a resumed audit skips those objects.
+ *
+ * @author ton
+ *
+ */
+public class ChecksumAuditTask extends Task {
+	// iRODS keyword to compute the checksum even if the catalog holds one
+	private static final String FORCE_CHKSUM_KW = "forceChksum";
+	private static final ExecutorService sourceCalls = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "audit");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// statistics of this operation
+	private static AtomicLong verified = new AtomicLong(0);
+	private static AtomicLong failed = new AtomicLong(0);
+	private static AtomicLong bytesVerified = new AtomicLong(0);
+	private DataObject dataObj;
+
+	public ChecksumAuditTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, DataObject dataObj) {
+		super(clientUser, runAsAgent, precondition, objId);
+		this.dataObj = dataObj;
+	}
+
+	/**
+	 * Decides whether an object is part of a sample. The decision depends on the path only,
+	 * hence a resumed or repeated audit selects the same objects.
+	 * @param path		path of the object on source
+	 * @param percent	size of the sample, as a percentage of all objects
+	 * @return true if the object is part of the sample
+	 */
+	public static boolean sampled(String path, double percent) {
+		if (percent >= 100.0) return true;
+		// spread the hash codes of similar paths over the range
+		int hash = path.hashCode() * 0x9E3779B9;
+		return Integer.remainderUnsigned(hash, 10000) < percent * 100.0;
+	}
+
+	@Override
+	public Boolean call() throws Exception {
+		String sourcePath = dataObj.getPath();
+		String destPath = context.destCollectionPath(dataObj) + "/" + dataObj.dataName;
+		Log.debug("TASK AUDIT DATA OBJECT\nFROM=" + sourcePath + "\n  TO=" + destPath);
+		Future<String> sourceCall = sourceCalls.submit(() -> serverChecksum(context.source, sourcePath));
+		String destChecksum = null;
+		IOException error = null;
+		try {
+			destChecksum = serverChecksum(context.dest, destPath);
+		} catch (IOException e) {
+			error = e;
+		}
+		// the source session is in use until the call has ended
+		String sourceChecksum = null;
+		try {
+			sourceChecksum = sourceCall.get();
+		} catch (ExecutionException e) {
+			if (error == null) {
+				error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+		if (error != null) {
+			String msg = "Audit failed with exception: " + error.getMessage();
+			context.ctx.log.logError(sourcePath, msg);
+			Log.info(sourcePath + ": " + msg);
+			context.disconnect();
+			return false;
+		}
+
+		String msg = null;
+		if (context.source.error) {
+			msg = "iRODS error: " + context.source.intInfo + " (at source)";
+		} else if (context.dest.error) {
+			msg = "iRODS error: " + context.dest.intInfo + " (at destination)";
+		} else if (sourceChecksum == null || destChecksum == null) {
+			msg = "no checksum returned by " + (sourceChecksum == null ? "source" : "destination");
+		} else if (!Checksum.sameScheme(sourceChecksum, destChecksum)) {
+			msg = "destination checksum " + destChecksum + " and source checksum " + sourceChecksum + " use a different scheme";
+		} else if (!Checksum.matches(sourceChecksum, destChecksum)) {
+			msg = "destination checksum is " + destChecksum + " while source checksum is " + sourceChecksum + " (" + sourcePath + ")";
+		}
+		if (msg != null) {
+			failed.incrementAndGet();
+			Log.error("Audit of object copy failed: " + msg);
+			context.ctx.log.logError(sourcePath, msg);
+		} else {
+			verified.incrementAndGet();
+			bytesVerified.addAndGet(dataObj.dataSize);
+			Log.info("Audited and OK: " + sourcePath);
+			context.ctx.log.logAudited(sourcePath);
+		}
+		// make room for another data object to be scheduled
+		context.scheduler.dataObjectDone();
+		return null;
+	}
+
+	private String serverChecksum(Hirods hirods, String path) throws IOException {
+		KeyValPair options = new KeyValPair();
+		options.put(FORCE_CHKSUM_KW, "");
+		return hirods.rcDataObjChksum(new DataObjInp(path, options));
+	}
+
+	public static void logStatistics() {
+		Log.info("Audit: " + verified.get() + " data objects (" + bytesVerified.get() + " bytes) verified, "
+				+ failed.get() + " failed");
+	}
+
+	@Override
+	public long priority() {
+		// large objects take the longest to checksum, they are started first
+		return TRANSFER_PRIORITY + dataObj.dataSize;
+	}
+
+	public String toString() {
+		return super.toString() + " obj = " + dataObj.getPath();
+	}
+
+}
@@ -0,0 +1,202 @@
+package nl.tsmeele.ipump;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * CompletedIndex holds the paths of objects that have been processed by an earlier operation,
+ * along with the furthest step that has been completed for each object.
+ *
+ * To keep the heap footprint small for logs with many millions of lines, the index does not
+ * hold the paths themselves. Each path is reduced to a 128-bit fingerprint (MD5), the
+ * fingerprints are kept in a single sorted array of longs, two longs per entry, and
+ * a parallel array holds the step of each entry.
+ * With 128 bits, the chance that an uncompleted object is mistaken for a completed one
+ * is negligible, even for billions of entries.
+ *
+ * Entries are added while the index is built, membership can be checked once it is sealed.
+ * Since an object is journaled once for each step, entries of the same object are merged
+ * whenever the index runs out of capacity.
+ *
+ * @author ton
+ *
+ */
+public class CompletedIndex {
+	// step of an object that has been completed altogether
+	public static final byte DONE = Byte.MAX_VALUE;
+	// step of an object that is not in the index
+	public static final byte NONE = -1;
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	// pairs of (high, low) fingerprint halves
+	private long[] fingerprints = new long[1024];
+	private byte[] steps = new byte[512];
+	private int size = 0;
+	private boolean sorted = true;
+
+	public void add(String path) {
+		add(path, DONE);
+	}
+
+	/**
+	 * Adds a completed step of an object.
+	 * @param path	path of the object
+	 * @param step	ordinal of the completed Precondition, or DONE
+	 */
+	public void add(String path, byte step) {
+		if (size == steps.length) {
+			merge();
+			// grow unless merging has freed at least half of the capacity
+			if (size * 2 > steps.length) {
+				fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+				steps = Arrays.copyOf(steps, steps.length * 2);
+			}
+		}
+		byte[] digest = MD5.get().digest(path.getBytes(StandardCharsets.UTF_8));
+		fingerprints[size * 2] = toLong(digest, 0);
+		fingerprints[size * 2 + 1] = toLong(digest, 8);
+		steps[size] = step;
+		size++;
+		sorted = false;
+	}
+
+	/**
+	 * Sorts the index and releases unused capacity, call once all entries have been added.
+	 */
+	public void seal() {
+		merge();
+		fingerprints = Arrays.copyOf(fingerprints, size * 2);
+		steps = Arrays.copyOf(steps, size);
+	}
+
+	/**
+	 * @return true if the object has been completed altogether
+	 */
+	public boolean contains(String path) {
+		return stepOf(path) == DONE;
+	}
+
+	/**
+	 * @return furthest completed step of the object, as ordinal of a Precondition, or DONE or NONE
+	 */
+	public byte stepOf(String path) {
+		if (size == 0) return NONE;
+		if (!sorted) {
+			throw new IllegalStateException("CompletedIndex must be sealed before lookup");
+		}
+		byte[] digest = MD5.get().digest(path.getBytes(StandardCharsets.UTF_8));
+		long high = toLong(digest, 0);
+		long low = toLong(digest, 8);
+		int lo = 0;
+		int hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(mid, high, low);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return steps[mid];
+			}
+		}
+		return NONE;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return heap used by the index per entry, in bytes
+	 */
+	public double bytesPerEntry() {
+		return size == 0 ? 0 : (double) (fingerprints.length * Long.BYTES + steps.length) / size;
+	}
+
+	/**
+	 * Sorts the entries and merges entries of the same object, keeping the highest step,
+	 * as the steps of an object complete in order of their ordinal.
+	 */
+	private void merge() {
+		if (sorted) return;
+		sort(0, size - 1);
+		int out = 0;
+		for (int i = 0; i < size; i++) {
+			if (out > 0 && compare(out - 1, fingerprints[i * 2], fingerprints[i * 2 + 1]) == 0) {
+				steps[out - 1] = (byte) Math.max(steps[out - 1], steps[i]);
+				continue;
+			}
+			fingerprints[out * 2] = fingerprints[i * 2];
+			fingerprints[out * 2 + 1] = fingerprints[i * 2 + 1];
+			steps[out] = steps[i];
+			out++;
+		}
+		size = out;
+		sorted = true;
+	}
+
+	private int compare(int i, long high, long low) {
+		int cmp = Long.compare(fingerprints[i * 2], high);
+		return cmp != 0 ? cmp : Long.compare(fingerprints[i * 2 + 1], low);
+	}
+
+	private void sort(int left, int right) {
+		// quicksort on entries, recursing on the smaller part keeps the stack shallow
+		while (right - left > 16) {
+			int mid = (left + right) >>> 1;
+			long pivotHigh = fingerprints[mid * 2];
+			long pivotLow = fingerprints[mid * 2 + 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (compare(i, pivotHigh, pivotLow) < 0) i++;
+				while (compare(j, pivotHigh, pivotLow) > 0) j--;
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (j - left < right - i) {
+				sort(left, j);
+				left = i;
+			} else {
+				sort(i, right);
+				right = j;
+			}
+		}
+		// insertion sort for small ranges
+		for (int i = left + 1; i <= right; i++) {
+			for (int j = i; j > left && compare(j - 1, fingerprints[j * 2], fingerprints[j * 2 + 1]) > 0; j--) {
+				swap(j - 1, j);
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		long high = fingerprints[i * 2];
+		long low = fingerprints[i * 2 + 1];
+		byte step = steps[i];
+		fingerprints[i * 2] = fingerprints[j * 2];
+		fingerprints[i * 2 + 1] = fingerprints[j * 2 + 1];
+		steps[i] = steps[j];
+		fingerprints[j * 2] = high;
+		fingerprints[j * 2 + 1] = low;
+		steps[j] = step;
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+}
@@ -11,10 +11,18 @@ import nl.tsmeele.myrods.high.IrodsUser;
 
 public class CreateCollectionTask extends Task {
 	private Collection coll;
+	private int subtreeSize;
 
-	public CreateCollectionTask(IrodsUser clientUser, boolean runAsAgent, String precondition, Collection coll) {
-		super(clientUser, runAsAgent, precondition);
+	public CreateCollectionTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, Collection coll, int subtreeSize) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.coll = coll;
+		this.subtreeSize = subtreeSize;
+	}
+	
+	@Override
+	public long priority() {
+		// collections with most objects underneath are made available first
+		return COLLECTION_PRIORITY + subtreeSize;
 	}
 
 	@Override
@@ -27,7 +35,7 @@ public class CreateCollectionTask extends Task {
 			// collection exists, we're done
 			Log.debug("Destination collection already exists: " + destCollPath);
 			// unblock any tasks that have this collection as precondition
-			context.scheduler.unblock(coll.getPath());
+			stepDone(Precondition.EXISTS, coll.getPath());
 			return null;
 		}
 		
@@ -54,7 +62,7 @@ public class CreateCollectionTask extends Task {
 		Log.info("Destination collection created: " + destCollPath);
 
 		// unblock any tasks that have this collection as precondition
-		context.scheduler.unblock(coll.getPath());
+		stepDone(Precondition.EXISTS, coll.getPath());
 		return null;
 	}
 
@@ -0,0 +1,89 @@
+package nl.tsmeele.ipump;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.Hirods;
+
+/**
+ * DestinationCache holds the names and sizes of the data objects in destination collections,
+ * so that a task can decide whether a data object needs to be transferred without asking
+ * the destination catalog about that object.
+ *
+ * A collection is listed with a single paged query the first time a task asks for it.
+ * The cache is shared by all runners. Collections that have not been used recently are
+ * evicted once the cache holds more than a maximum number of data objects.
+ *
+ * The listing reflects the collection at the time it was listed. This suffices as each
+ * data object is transferred only once per operation.
+ *
+ * @author ton
+ *
+ */
+public class DestinationCache {
+	public static final int DEFAULT_MAX_ENTRIES = 1000000;
+	private int maxEntries;
+	private int entries = 0;
+	// collections in order of last use
+	private LinkedHashMap<String, HashMap<String, Long>> collections = new LinkedHashMap<String, HashMap<String, Long>>(16, 0.75f, true);
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong loads = new AtomicLong(0);
+
+	public DestinationCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Looks up a data object in a destination collection, the collection is listed if needed.
+	 * @param dest		connection to the destination server, used to list the collection
+	 * @param collPath	path of destination collection
+	 * @param dataName	name of data object
+	 * @return size of the data object, or null if the collection holds no such data object
+	 * @throws IOException if the collection cannot be listed
+	 */
+	public Long size(Hirods dest, String collPath, String dataName) throws IOException {
+		return sizes(dest, collPath).get(dataName);
+	}
+
+	/**
+	 * @return names and sizes of the data objects in a destination collection
+	 * @throws IOException if the collection cannot be listed
+	 */
+	public Map<String, Long> sizes(Hirods dest, String collPath) throws IOException {
+		HashMap<String, Long> sizes;
+		synchronized (this) {
+			sizes = collections.get(collPath);
+		}
+		if (sizes != null) {
+			hits.incrementAndGet();
+			return sizes;
+		}
+		// runners may list the same collection at once, either listing will do
+		sizes = IrodsQuery.getDataObjectSizes(dest, collPath);
+		if (sizes == null) {
+			throw new IOException("Unable to list destination collection '" + collPath + "'");
+		}
+		loads.incrementAndGet();
+		synchronized (this) {
+			HashMap<String, Long> previous = collections.put(collPath, sizes);
+			entries += sizes.size() - (previous == null ? 0 : previous.size());
+			Iterator<HashMap<String, Long>> it = collections.values().iterator();
+			// keep the collection that we have just listed
+			while (entries > maxEntries && collections.size() > 1) {
+				entries -= it.next().size();
+				it.remove();
+			}
+		}
+		return sizes;
+	}
+
+	public void logStatistics() {
+		Log.debug("Destination cache: " + loads.get() + " collections listed, " + hits.get() + " lookups served from cache");
+	}
+
+}
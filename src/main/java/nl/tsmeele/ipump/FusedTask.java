@@ -0,0 +1,60 @@
+package nl.tsmeele.ipump;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * FusedTask executes consecutive steps of an object as a single task, on the runner
+ * and session pair that picks it up. The steps do not pass through the scheduler one by one.
+ *
+ * All steps run as the same user, hence the runner does not need to login again between steps.
+ * A step that fails ends the task, the remaining steps are abandoned along with the object,
+ * just as the scheduler abandons the tasks that depend on a failed step.
+ * Each step still journals its completion, so that a resumed operation continues at the next step.
+ *
+ * @author ton
+ *
+ */
+public class FusedTask extends Task {
+	private List<Task> steps = new ArrayList<Task>();
+
+	public FusedTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId) {
+		super(clientUser, runAsAgent, precondition, objId);
+	}
+
+	/**
+	 * Appends a step, steps are executed in order of addition.
+	 * @param step	task for the same object, that runs as the same user
+	 */
+	public void add(Task step) {
+		steps.add(step);
+	}
+
+	@Override
+	public Boolean call() throws Exception {
+		for (Task step : steps) {
+			step.setContext(context);
+			if (Boolean.FALSE.equals(step.call())) {
+				return false;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public long priority() {
+		// the first step decides when the chain starts
+		return steps.isEmpty() ? 0L : steps.get(0).priority();
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder(super.toString() + " steps =");
+		for (Task step : steps) {
+			sb.append(" " + step.getClass().getSimpleName());
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,114 @@
+package nl.tsmeele.ipump;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * GroupPlanner collects the data objects of a collection into tasks that act on several
+ * data objects at once: batches of small data objects, and groups that add admin access.
+ *
+ * The TaskProducer hands each data object to the planner. The planner schedules a task
+ * once it is full, or once the producer flushes the planner after all members of
+ * a collection have been scheduled.
+ *
+ * @author ton
+ *
+ */
+public class GroupPlanner {
+	private PumpContext ctx;
+	private TaskScheduler scheduler;
+	private IrodsUser sourceAdmin;
+	// batches of small data objects that are being filled, keyed on agent and parent collection
+	private HashMap<String, PumpSmallObjectsTask> batches = new HashMap<String, PumpSmallObjectsTask>();
+	// groups of data objects that wait for admin access, keyed on parent collection id
+	private HashMap<Integer, AddAdminAccessToDataObjectsTask> accessGroups = new HashMap<Integer, AddAdminAccessToDataObjectsTask>();
+	// collections that have subcollections, and collections of which the data objects are in more than one group
+	private BitSet hasSubCollections = new BitSet();
+	private BitSet splitGroups = new BitSet();
+	private int groupedObjects = 0;
+	private int groups = 0;
+
+	public GroupPlanner(PumpContext ctx, TaskScheduler scheduler, IrodsUser sourceAdmin) {
+		this.ctx = ctx;
+		this.scheduler = scheduler;
+		this.sourceAdmin = sourceAdmin;
+	}
+
+	/**
+	 * Records that a collection has a subcollection, hence its data objects are not
+	 * all objects of its subtree.
+	 * @param collId	id of the parent collection
+	 */
+	public void addSubCollection(int collId) {
+		hasSubCollections.set(collId);
+	}
+
+	/**
+	 * Adds a data object to the group that adds admin access to the data objects of its collection.
+	 * The group runs once its members exist, and the admin has access to the collection in which they
+	 * reside (the second precondition is implicitly fulfilled). A group that holds all data objects
+	 * of a collection without subcollections uses a single recursive request.
+	 */
+	public void joinAccessGroup(int parentId, int dataId, DataObject data) {
+		AddAdminAccessToDataObjectsTask group = accessGroups.get(parentId);
+		if (group == null) {
+			group = new AddAdminAccessToDataObjectsTask(sourceAdmin, false, Precondition.EXISTS.key(parentId), parentId);
+			accessGroups.put(parentId, group);
+		}
+		group.add(data, dataId);
+		scheduler.awaitArrival(dataId, group);
+		groupedObjects++;
+	}
+
+	/**
+	 * Adds a small data object to the batch of its agent and collection, a full batch is scheduled.
+	 */
+	public void addToBatch(IrodsUser agent, boolean runAsAgent, int parentId, int dataId, DataObject data) {
+		String key = agent.nameAndZone() + "#" + parentId;
+		PumpSmallObjectsTask batch = batches.get(key);
+		if (batch == null) {
+			batch = new PumpSmallObjectsTask(agent, runAsAgent, Precondition.ADMIN_HAS_ACCESS.key(parentId), parentId);
+			batches.put(key, batch);
+		}
+		batch.add(data, dataId);
+		if (batch.size() >= ctx.batchSize) {
+			batches.remove(key);
+			scheduler.addBlockedTask(batch);
+		}
+	}
+
+	/**
+	 * Schedules the batches and seals the access groups that have not been scheduled yet.
+	 * @param complete	true if all data objects of the collections involved have been scheduled
+	 */
+	public void flush(boolean complete) {
+		for (PumpSmallObjectsTask batch : batches.values()) {
+			scheduler.addBlockedTask(batch);
+		}
+		batches.clear();
+		for (Map.Entry<Integer, AddAdminAccessToDataObjectsTask> entry : accessGroups.entrySet()) {
+			int collId = entry.getKey();
+			if (!complete) {
+				splitGroups.set(collId);
+			}
+			// a single data object as source does not tell which other objects its collection holds
+			boolean wholeCollection = complete && !splitGroups.get(collId) && !hasSubCollections.get(collId)
+					&& ctx.sourceObject.isCollection();
+			scheduler.sealGroup(entry.getValue(), wholeCollection);
+			groups++;
+		}
+		accessGroups.clear();
+	}
+
+	public void logPlanning() {
+		if (groups > 0) {
+			Log.info("Admin access to " + groupedObjects + " data objects is added by " + groups + " collection groups");
+		}
+	}
+
+}
@@ -2,9 +2,18 @@ package nl.tsmeele.ipump;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import nl.tsmeele.log.Log;
 import nl.tsmeele.myrods.api.Columns;
 import nl.tsmeele.myrods.api.Flag;
 import nl.tsmeele.myrods.api.GenQueryInp;
@@ -12,6 +21,7 @@ import nl.tsmeele.myrods.api.GenQueryOut;
 import nl.tsmeele.myrods.api.InxIvalPair;
 import nl.tsmeele.myrods.api.InxValPair;
 import nl.tsmeele.myrods.api.KeyValPair;
+import nl.tsmeele.myrods.high.AVU;
 import nl.tsmeele.myrods.high.Collection;
 import nl.tsmeele.myrods.high.DataObject;
 import nl.tsmeele.myrods.high.Hirods;
@@ -23,74 +33,81 @@ public class IrodsQuery {
 	public final static String SECURED = "SECURED";
 	public final static String REJECTED = "REJECTED";
 	public final static String EMPTY = "";
+	// iRODS servers return at most 256 rows per page
+	public final static int MAX_PAGE_SIZE = 256;
+	// when adapting, a page should not exceed this size or take longer than this to arrive
+	private final static int MAX_PAGE_BYTES = 256 * 1024;
+	private final static long MAX_PAGE_MILLIS = 2000;
 	
+	private static volatile int pageSize = MAX_PAGE_SIZE;
+	private static AtomicLong roundTrips = new AtomicLong(0);
+	private static AtomicLong queryNanos = new AtomicLong(0);
 	
-	public static List<Collection> findYodaLockedCollections(Hirods hirods, String collPath) throws MyRodsException, IOException {
-		if (!hirods.isAuthenticated()) return null;
-		List<Collection> out = new ArrayList<Collection>();
-		// select clause
-		InxIvalPair inxIvalPair = new InxIvalPair();
-		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);	
-		inxIvalPair.put(Columns.COLL_OWNER_NAME.getId(), Flag.SELECT_NORMAL);	
-		inxIvalPair.put(Columns.COLL_OWNER_ZONE.getId(), Flag.SELECT_NORMAL);	
-		// where clause for collection
-		InxValPair inxValPairColl = new InxValPair();
-		inxValPairColl.put(Columns.COLL_NAME.getId(), "= '" + collPath + "'");
-		inxValPairColl.put(Columns.META_COLL_ATTR_NAME.getId(), "= '" + ORG_LOCK + "'");
-		// where clause for all subcollections
-		InxValPair inxValPairSub  = new InxValPair();
-		inxValPairSub.put(Columns.COLL_NAME.getId(), "like '" + collPath + "/%" + "'");
-		inxValPairSub.put(Columns.META_COLL_ATTR_NAME.getId(), "= '" + ORG_LOCK + "'");
-
-		int maxRows = 256;
-
-		// query the collection itself
-		GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
-				new KeyValPair(), inxIvalPair , inxValPairColl);
-		out.addAll(runGetCollectionQuery(hirods, genQueryInp));
-		// query subcollections
-		genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
-				new KeyValPair(), inxIvalPair , inxValPairSub);
-		out.addAll(runGetCollectionQuery(hirods, genQueryInp));
-		return out;
+	/**
+	 * Sets the number of rows requested per page. Queries may request fewer rows
+	 * for a next page, if rows turn out to be wide or pages are slow to arrive.
+	 */
+	public static void setPageSize(int rows) {
+		pageSize = Math.max(1, Math.min(rows, MAX_PAGE_SIZE));
 	}
 	
+	/**
+	 * @return number of query pages requested from a server so far
+	 */
+	public static long roundTrips() {
+		return roundTrips.get();
+	}
 	
-	public static List<Collection> findYodaWorkflowInCollections(Hirods hirods, String collPath) throws MyRodsException, IOException {
-		if (!hirods.isAuthenticated()) return null;
-		List<Collection> out = new ArrayList<Collection>();
+	/**
+	 * @return total time spent waiting for query pages so far, in milliseconds
+	 */
+	public static long queryMillis() {
+		return queryNanos.get() / 1000000;
+	}
+	
+	/**
+	 * Finds Yoda locks and active workflows in a collection tree, using a single query.
+	 * @param locks		receives collections that have a lock
+	 * @param workflows	receives collections that have an active workflow
+	 * @return false if the query could not be executed
+	 */
+	public static boolean findYodaLocksAndWorkflows(Hirods hirods, String collPath, 
+			List<Collection> locks, List<Collection> workflows) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return false;
 		// select clause
 		InxIvalPair inxIvalPair = new InxIvalPair();
 		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);	
 		inxIvalPair.put(Columns.COLL_OWNER_NAME.getId(), Flag.SELECT_NORMAL);	
 		inxIvalPair.put(Columns.COLL_OWNER_ZONE.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_COLL_ATTR_NAME.getId(), Flag.SELECT_NORMAL);
 		inxIvalPair.put(Columns.META_COLL_ATTR_VALUE.getId(), Flag.SELECT_NORMAL);
-		// where clause for collection
-		InxValPair inxValPairColl = new InxValPair();
-		inxValPairColl.put(Columns.COLL_NAME.getId(), "= '" + collPath + "'");
-		inxValPairColl.put(Columns.META_COLL_ATTR_NAME.getId(), "= '" + ORG_STATUS + "'");
-		//inxValPairColl.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + SECURED + "'");
-		//inxValPairColl.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + REJECTED + "'");
-		//inxValPairColl.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + EMPTY + "'");
-		// where clause for all subcollections
-		InxValPair inxValPairSub  = new InxValPair();
-		inxValPairSub.put(Columns.COLL_NAME.getId(), "like '" + collPath + "/%" + "'");
-		inxValPairSub.put(Columns.META_COLL_ATTR_NAME.getId(), "= '" + ORG_STATUS + "'");
-		//inxValPairColl.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + SECURED + "'");
-		//inxValPairSub.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + SECURED + "'");
-		//inxValPairColl.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + REJECTED + "'");
-		//inxValPairSub.put(Columns.META_COLL_ATTR_VALUE.getId(), "!= '" + EMPTY + "'");
-		int maxRows = 256;
-
-		// query the collection itself
-		GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
-				new KeyValPair(), inxIvalPair , inxValPairColl);
-		out.addAll(runGetCollectionForWorkflowsQuery(hirods, genQueryInp));
-		// query subcollections
-		genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
-				new KeyValPair(), inxIvalPair , inxValPairSub);
-		out.addAll(runGetCollectionForWorkflowsQuery(hirods, genQueryInp));
-		return out;
+		// where clause for the collection itself and all of its subcollections
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "' || like '" + collPath + "/%" + "'");
+		inxValPair.put(Columns.META_COLL_ATTR_NAME.getId(), "in ('" + ORG_LOCK + "', '" + ORG_STATUS + "')");
+		
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		Iterator<GenQueryOut> it = pages(hirods, genQueryInp);
+		while (it.hasNext()) {
+			GenQueryOut genOut = it.next();
+			for (int i = 0; i < genOut.rowCount; i++) {
+				Collection coll = new Collection(
+					genOut.data[i][0], // collName
+					genOut.data[i][1], // collOwnerName
+					genOut.data[i][2]); // collOwnerZone
+				if (genOut.data[i][3].equals(ORG_LOCK)) {
+					locks.add(coll);
+					continue;
+				}
+				String orgStatus = genOut.data[i][4]; // AVU value for org_status
+				if (orgStatus.equals(SECURED) || orgStatus.equals(REJECTED) || orgStatus.equals(EMPTY)) {
+					continue;
+				}
+				workflows.add(coll);
+			}
+		}
+		return true;
 	}
 	
 	
@@ -112,7 +129,7 @@ public class IrodsQuery {
 		} else {
 			inxValPair.put(Columns.COLL_PARENT_NAME.getId(), "= '" + collPath + "'");
 		}
-		int maxRows = 256;
+		int maxRows = pageSize;
 		GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
 				new KeyValPair(), inxIvalPair , inxValPair);
 		out.addAll(runGetCollectionQuery(hirods, genQueryInp));
@@ -123,6 +140,224 @@ public class IrodsQuery {
 	public static List<DataObject> getDataObjects(Hirods hirods, String collPath, boolean recursive) throws MyRodsException, IOException {
 		if (!hirods.isAuthenticated()) return null;
 		List<DataObject> out = new ArrayList<DataObject>();
+		forEachDataObject(hirods, collPath, recursive, out::add);
+		return out;
+	}
+	
+	/**
+	 * Lists the names and sizes of the data objects in a single collection.
+	 * @return map of data object name to size, the largest size in case of multiple replicas
+	 */
+	public static HashMap<String, Long> getDataObjectSizes(Hirods hirods, String collPath) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		inxIvalPair.put(Columns.DATA_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.DATA_SIZE.getId(), Flag.SELECT_NORMAL);
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "'");
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		HashMap<String, Long> sizes = new HashMap<String, Long>();
+		Iterator<GenQueryOut> it = pages(hirods, genQueryInp);
+		while (it.hasNext()) {
+			GenQueryOut genOut = it.next();
+			for (int i = 0; i < genOut.rowCount; i++) {
+				sizes.merge(genOut.data[i][0], Long.parseLong(genOut.data[i][1]), Math::max);
+			}
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Lists the catalog checksums of the data objects in a single collection.
+	 * @param dataName	name of a single data object, or null for all data objects in the collection
+	 * @return map of data object name to checksum, objects without checksum are left out
+	 */
+	public static HashMap<String, String> getChecksums(Hirods hirods, String collPath, String dataName) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		inxIvalPair.put(Columns.DATA_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.DATA_CHECKSUM.getId(), Flag.SELECT_NORMAL);
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "'");
+		if (dataName != null) {
+			inxValPair.put(Columns.DATA_NAME.getId(), "= '" + dataName + "'");
+		}
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		HashMap<String, String> checksums = new HashMap<String, String>();
+		Iterator<GenQueryOut> it = pages(hirods, genQueryInp);
+		while (it.hasNext()) {
+			GenQueryOut genOut = it.next();
+			for (int i = 0; i < genOut.rowCount; i++) {
+				// replicas may lack a checksum, any replica that has one will do
+				if (genOut.data[i][1] != null && !genOut.data[i][1].isEmpty()) {
+					checksums.put(genOut.data[i][0], genOut.data[i][1]);
+				}
+			}
+		}
+		return checksums;
+	}
+	
+	/**
+	 * Lists the AVUs of all data objects in a single collection, using a single paged query.
+	 * @return map of data object name to its AVUs, objects without AVUs are left out
+	 */
+	public static HashMap<String, List<AVU>> getDataObjectAvus(Hirods hirods, String collPath) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		inxIvalPair.put(Columns.DATA_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_DATA_ATTR_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_DATA_ATTR_VALUE.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_DATA_ATTR_UNITS.getId(), Flag.SELECT_NORMAL);
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "'");
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		return runGetAvuQuery(hirods, genQueryInp);
+	}
+	
+	/**
+	 * Lists the AVUs of all direct subcollections of a collection, using a single paged query.
+	 * @return map of subcollection path to its AVUs, subcollections without AVUs are left out
+	 */
+	public static HashMap<String, List<AVU>> getSubCollectionAvus(Hirods hirods, String collPath) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_COLL_ATTR_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_COLL_ATTR_VALUE.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.META_COLL_ATTR_UNITS.getId(), Flag.SELECT_NORMAL);
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_PARENT_NAME.getId(), "= '" + collPath + "'");
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		return runGetAvuQuery(hirods, genQueryInp);
+	}
+	
+	/**
+	 * Lists the collection and its subcollections that have been modified since a point in time. 
+	 * @param since		seconds since epoch
+	 */
+	public static List<Collection> getModifiedCollections(Hirods hirods, String collPath, long since) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);	
+		inxIvalPair.put(Columns.COLL_OWNER_NAME.getId(), Flag.SELECT_NORMAL);	
+		inxIvalPair.put(Columns.COLL_OWNER_ZONE.getId(), Flag.SELECT_NORMAL);	
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "' || like '" + collPath + "/%" + "'");
+		inxValPair.put(Columns.COLL_MODIFY_TIME.getId(), ">= '" + irodsTime(since) + "'");
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		return runGetCollectionQuery(hirods, genQueryInp);
+	}
+	
+	/**
+	 * Lists the data objects in a collection and its subcollections that have been modified since a point in time. 
+	 * @param since		seconds since epoch
+	 */
+	public static List<DataObject> getModifiedDataObjects(Hirods hirods, String collPath, long since) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		List<DataObject> out = new ArrayList<DataObject>();
+		// SELECT clause
+		InxIvalPair inxIvalPair = new InxIvalPair();
+		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);
+		inxIvalPair.put(Columns.DATA_NAME.getId(), Flag.SELECT_NORMAL);	
+		inxIvalPair.put(Columns.DATA_SIZE.getId(), Flag.SELECT_NORMAL);	
+		inxIvalPair.put(Columns.DATA_OWNER_NAME.getId(), Flag.SELECT_NORMAL);	
+		inxIvalPair.put(Columns.DATA_OWNER_ZONE.getId(), Flag.SELECT_NORMAL);
+		// WHERE clause
+		InxValPair inxValPair = new InxValPair();
+		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "' || like '" + collPath + "/%" + "'");
+		inxValPair.put(Columns.DATA_MODIFY_TIME.getId(), ">= '" + irodsTime(since) + "'");
+		GenQueryInp genQueryInp = new GenQueryInp(pageSize, 0, 0, 0,
+				new KeyValPair(), inxIvalPair , inxValPair);
+		runGetDataObjectQuery(hirods, genQueryInp, out::add);
+		return out;
+	}
+	
+	private static String irodsTime(long seconds) {
+		// iRODS stores timestamps as zero padded seconds since epoch
+		return String.format("%011d", seconds);
+	}
+	
+	/**
+	 * Lists all data objects in a collection and its subcollections, using multiple connections in parallel.
+	 * 
+	 * The tree is partitioned by first-level subcollection. Each partition consists of a subcollection 
+	 * and its subtree, the data objects directly underneath the collection are listed separately. 
+	 * Hence each data object is part of exactly one partition. 
+	 * Partitions are processed by a number of threads, each with a clone of the connection. 
+	 * @param threads	number of concurrent connections
+	 */
+	public static List<DataObject> getDataObjectsParallel(Hirods hirods, String collPath, int threads) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return null;
+		List<DataObject> out = getDataObjects(hirods, collPath, false);
+		ConcurrentLinkedQueue<String> partitions = new ConcurrentLinkedQueue<String>();
+		for (Collection coll : getSubCollections(hirods, collPath, false)) {
+			partitions.add(coll.getPath());
+		}
+		int nPartitions = partitions.size();
+		threads = Math.max(1, Math.min(threads, nPartitions));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<List<DataObject>>> results = new ArrayList<Future<List<DataObject>>>();
+		for (int i = 0; i < threads; i++) {
+			results.add(executor.submit(() -> {
+				List<DataObject> part = new ArrayList<DataObject>();
+				Hirods conn = hirods.cloneConnection();
+				try {
+					String partition;
+					while ((partition = partitions.poll()) != null) {
+						String prefix = partition + "/";
+						final String partitionPath = partition;
+						forEachDataObject(conn, partition, true, obj -> {
+							// 'like' also treats '_' in a path as a wildcard, keep only true members of the partition
+							if (obj.collName.equals(partitionPath) || obj.collName.startsWith(prefix)) {
+								part.add(obj);
+							}
+						});
+					}
+				} finally {
+					conn.rcDisconnect();
+				}
+				return part;
+			}));
+		}
+		executor.shutdown();
+		try {
+			for (Future<List<DataObject>> result : results) {
+				out.addAll(result.get());
+			}
+		} catch (InterruptedException e) {
+			throw new MyRodsException("Interrupted while listing data objects of " + collPath);
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new MyRodsException("Unable to list data objects of " + collPath + ": " + e.getCause().getMessage());
+		}
+		Log.debug("Listed " + out.size() + " data objects in " + nPartitions + " partitions using " + threads + " connections");
+		return out;
+	}
+	
+	/**
+	 * Hands each data object in the collection to a consumer, as soon as its query page has been received. 
+	 * Unlike getDataObjects, this does not hold all data objects in memory.
+	 */
+	public static void forEachDataObject(Hirods hirods, String collPath, boolean recursive, Consumer<DataObject> consumer) throws MyRodsException, IOException {
+		if (!hirods.isAuthenticated()) return;
 		// SELECT clause
 		InxIvalPair inxIvalPair = new InxIvalPair();
 		inxIvalPair.put(Columns.COLL_NAME.getId(), Flag.SELECT_NORMAL);
@@ -136,13 +371,13 @@ public class IrodsQuery {
 		InxValPair inxValPair = new InxValPair();
 		inxValPair.put(Columns.COLL_NAME.getId(), "= '" + collPath + "'");
 		
-		int maxRows = 256;
+		int maxRows = pageSize;
 		GenQueryInp genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
 				new KeyValPair(), inxIvalPair , inxValPair);
-		out.addAll(runGetDataObjectQuery(hirods, genQueryInp));
+		runGetDataObjectQuery(hirods, genQueryInp, consumer);
 
 		if (!recursive) {
-			return out;
+			return;
 		}
 		/* second WHERE clause to query data objects that are
 		 * indirect members of the collection (recursive == true)	
@@ -152,13 +387,12 @@ public class IrodsQuery {
 		
 		genQueryInp = new GenQueryInp(maxRows, 0, 0, 0,
 				new KeyValPair(), inxIvalPair , inxValPair);
-		out.addAll(runGetDataObjectQuery(hirods, genQueryInp));
-		return out;
+		runGetDataObjectQuery(hirods, genQueryInp, consumer);
 	}
 	
-	private static List<Collection> runGetCollectionForWorkflowsQuery(Hirods hirods, GenQueryInp genQueryInp) throws MyRodsException, IOException {
+	private static List<Collection> runGetCollectionQuery(Hirods hirods, GenQueryInp genQueryInp) throws MyRodsException, IOException {
 		List<Collection> out = new ArrayList<Collection>();
-		Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
+		Iterator<GenQueryOut> it = pages(hirods, genQueryInp);
 		while (it.hasNext()) {
 			GenQueryOut genOut = it.next();
 			for (int i = 0; i < genOut.rowCount; i++) {
@@ -166,50 +400,114 @@ public class IrodsQuery {
 					genOut.data[i][0], // collName
 					genOut.data[i][1], // collOwnerName
 					genOut.data[i][2]); // collOwnerZone
-				String orgStatus = genOut.data[i][3]; // AVU value for org_status
-				if (orgStatus.equals(SECURED) || orgStatus.equals(REJECTED) || orgStatus.equals(EMPTY)) {
-					continue;
-				}
 				out.add(coll);
 			}
 		}
 		return out;
 	}
 	
-	private static List<Collection> runGetCollectionQuery(Hirods hirods, GenQueryInp genQueryInp) throws MyRodsException, IOException {
-		List<Collection> out = new ArrayList<Collection>();
-		Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
+	private static void runGetDataObjectQuery(Hirods hirods, GenQueryInp genQueryInp, Consumer<DataObject> consumer) throws MyRodsException, IOException {
+		// collection and owner names repeat across many rows, we keep a single copy of each
+		HashMap<String,String> names = new HashMap<String,String>();
+		Iterator<GenQueryOut> it = pages(hirods, genQueryInp);
 		while (it.hasNext()) {
 			GenQueryOut genOut = it.next();
 			for (int i = 0; i < genOut.rowCount; i++) {
-				Collection coll = new Collection(
-					genOut.data[i][0], // collName
-					genOut.data[i][1], // collOwnerName
-					genOut.data[i][2]); // collOwnerZone
-				out.add(coll);
+				DataObject obj = new DataObject(
+						dedup(names, genOut.data[i][0]),	// collName 
+						genOut.data[i][1],	// dataName
+						Long.parseLong(genOut.data[i][2]),	// dataSize
+						dedup(names, genOut.data[i][3]),	// dataOwnerName
+						dedup(names, genOut.data[i][4]));	// dataOwnerZone
+				consumer.accept(obj);
 			}
 		}
-		return out;
 	}
 	
-	private static List<DataObject> runGetDataObjectQuery(Hirods hirods, GenQueryInp genQueryInp) throws MyRodsException, IOException {
-		List<DataObject> out = new ArrayList<DataObject>();
-		Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
+	private static HashMap<String, List<AVU>> runGetAvuQuery(Hirods hirods, GenQueryInp genQueryInp) throws MyRodsException, IOException {
+		HashMap<String, List<AVU>> out = new HashMap<String, List<AVU>>();
+		// attribute names repeat across many objects, we keep a single copy of each
+		HashMap<String,String> names = new HashMap<String,String>();
+		Iterator<GenQueryOut> it = pages(hirods, genQueryInp);
 		while (it.hasNext()) {
 			GenQueryOut genOut = it.next();
 			for (int i = 0; i < genOut.rowCount; i++) {
-				DataObject obj = new DataObject(
-						genOut.data[i][0],	// collName 
-						genOut.data[i][1],	// dataName
-						Long.parseLong(genOut.data[i][2]),	// dataSize
-						genOut.data[i][3],	// dataOwnerName
-						genOut.data[i][4]);	// dataOwnerZone
-				out.add(obj);
+				AVU avu = new AVU(
+						dedup(names, genOut.data[i][1]),	// attribute name
+						genOut.data[i][2],	// value
+						genOut.data[i][3] == null ? EMPTY : dedup(names, genOut.data[i][3]));	// units
+				out.computeIfAbsent(genOut.data[i][0], k -> new ArrayList<AVU>()).add(avu);
 			}
 		}
 		return out;
 	}
 	
+	private static Iterator<GenQueryOut> pages(Hirods hirods, GenQueryInp genQueryInp) throws MyRodsException, IOException {
+		long start = System.nanoTime();
+		// the iterator already requests the first page
+		Iterator<GenQueryOut> it = hirods.genQueryIterator(genQueryInp);
+		return new PageIterator(it, genQueryInp, System.nanoTime() - start);
+	}
+	
+	/**
+	 * PageIterator keeps statistics on the pages of a query, and requests fewer rows
+	 * per page if rows are wide or a page is slow to arrive.
+	 */
+	private static class PageIterator implements Iterator<GenQueryOut> {
+		private Iterator<GenQueryOut> it;
+		private GenQueryInp genQueryInp;
+		// time it took to receive the page that next() returns
+		private long nanos;
+		
+		PageIterator(Iterator<GenQueryOut> it, GenQueryInp genQueryInp, long nanos) {
+			this.it = it;
+			this.genQueryInp = genQueryInp;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public GenQueryOut next() {
+			// the page has already been received, the iterator requests the next page right away
+			long start = System.nanoTime();
+			GenQueryOut genOut = it.next();
+			roundTrips.incrementAndGet();
+			queryNanos.addAndGet(nanos);
+			adapt(genOut, nanos);
+			nanos = System.nanoTime() - start;
+			return genOut;
+		}
+		
+		private void adapt(GenQueryOut genOut, long nanos) {
+			if (genOut.rowCount == 0) return;
+			long bytes = 0;
+			for (int i = 0; i < genOut.rowCount; i++) {
+				for (String value : genOut.data[i]) {
+					bytes += value == null ? 0 : value.length();
+				}
+			}
+			long rowBytes = Math.max(1, bytes / genOut.rowCount);
+			int rows = (int) Math.min(pageSize, MAX_PAGE_BYTES / rowBytes);
+			if (nanos / 1000000 > MAX_PAGE_MILLIS) {
+				// slow pages, halve the page size
+				rows = Math.min(rows, genOut.rowCount / 2);
+			} else if (genOut.rowCount < pageSize) {
+				// fast pages, grow back towards the configured page size 
+				rows = Math.min(rows, genOut.rowCount * 2);
+			}
+			genQueryInp.setMaxRows(Math.max(1, rows));
+		}
+	}
+	
+	private static String dedup(HashMap<String,String> names, String name) {
+		String existing = names.putIfAbsent(name, name);
+		return existing == null ? name : existing;
+	}
+	
 	
 	
 	
@@ -7,8 +7,8 @@ import nl.tsmeele.myrods.high.IrodsUser;
 public class LogCollectionDoneTask extends Task {
 	private Collection coll;
 
-	public LogCollectionDoneTask(IrodsUser clientUser, boolean runAsAgent, String precondition, Collection coll) {
-		super(clientUser, runAsAgent, precondition);
+	public LogCollectionDoneTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, Collection coll) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.coll = coll;
 	}
 
@@ -7,15 +7,23 @@ import nl.tsmeele.myrods.high.IrodsUser;
 public class LogDataObjectDoneTask extends Task {
 	private DataObject dataObj;
 
-	public LogDataObjectDoneTask(IrodsUser clientUser, boolean runAsAgent, String precondition, DataObject dataObj) {
-		super(clientUser, runAsAgent, precondition);
+	public LogDataObjectDoneTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, DataObject dataObj) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.dataObj = dataObj;
 	}
 
+	@Override
+	public long priority() {
+		// completes a transferred data object, ahead of new transfers
+		return FOLLOW_UP_PRIORITY;
+	}
+
 	@Override
 	public Boolean call() throws Exception {
 		Log.debug("TASK LOG DATA OBJECT DONE " +  dataObj.getPath());	
 		context.ctx.log.logDone(dataObj.getPath());
+		// make room for another data object to be scheduled
+		context.scheduler.dataObjectDone();
 		return null;
 	}
 
@@ -4,31 +4,83 @@ package nl.tsmeele.ipump;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import nl.tsmeele.log.Log;
+
+/**
+ * LogFile records the results of an operation, it also serves as the resume log of a next operation.
+ *
+ * Callers do not write to the file themselves, they add a record to a queue and continue.
+ * A single writer thread appends queued records to the file, and flushes them as a group
+ * once the flush interval has passed or the number of unflushed records reaches a limit.
+ * When idle, a new record is flushed right away.
+ *
+ * Besides the result of an object, the log journals each step that has been completed 
+ * for an object (see Precondition), so that a resumed operation can skip completed steps.
+ *
+ * Durability: a logged record reaches the file (the operating system) within the flush
+ * interval. With sync enabled, the file is also forced to disk at each flush, hence a record
+ * survives a crash of the host once the interval has passed. Records that are lost in a crash
+ * only cause their objects to be processed again on resume, as tasks check the destination
+ * before they act.
+ */
 public class LogFile {
+	public static final long DEFAULT_FLUSH_MILLIS = 1000;
+	public static final int DEFAULT_FLUSH_RECORDS = 1000;
+	// marks the end of the queue, compared by reference
+	private static final String END = new String("END");
 	private String logfilePath;
+	private FileOutputStream stream = null;
 	private BufferedWriter logfile = null;
-	
+	private BlockingQueue<String> records = new LinkedBlockingQueue<String>();
+	private Thread writer;
+	private long flushMillis;
+	private int flushRecords;
+	private boolean sync;
+	private volatile IOException writeError = null;
+
 	public LogFile(String logfilePath) {
+		this(logfilePath, DEFAULT_FLUSH_MILLIS, DEFAULT_FLUSH_RECORDS, false);
+	}
+
+	public LogFile(String logfilePath, long flushMillis, int flushRecords, boolean sync) {
+		this.flushMillis = flushMillis;
+		this.flushRecords = flushRecords;
+		this.sync = sync;
 		openAppend(logfilePath);
+		writer = new Thread(this::writeRecords, "logwriter");
+		writer.setDaemon(true);
+		writer.start();
 	}
-	
+
 	public void openAppend(String logfilePath) {
 		if (logfile != null) return;
 		this.logfilePath = logfilePath;
 		try {
-			logfile = new BufferedWriter(new FileWriter(logfilePath, true));
+			stream = new FileOutputStream(logfilePath, true);
+			logfile = new BufferedWriter(new OutputStreamWriter(stream));
 		} catch (IOException e) {
 			// logfile is null upon any error
 		}
 	}
-	
+
+	/**
+	 * Writes all queued records and closes the file.
+	 */
 	public void close() {
+		records.add(END);
+		try {
+			writer.join();
+		} catch (InterruptedException e) { }
 		if (logfile != null) {
 			try {
 				logfile.close();
@@ -37,33 +89,105 @@ public class LogFile {
 			}
 		}
 	}
-	
-	public synchronized void logDone(String path) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("OK " + path + "\n");
-		logfile.flush();
+
+	public void logDone(String path) throws IOException {
+		log("OK " + path + "\n");
 	}
-	
-	public synchronized void logError(String path, String error) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("ERROR " + path + " : " + error + "\n");
-		logfile.flush();
+
+	public void logAudited(String path) throws IOException {
+		log("AUDITED " + path + "\n");
 	}
-	
-	public synchronized void logRePublish(String path) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("REPUBLICATION_NEEDED " + path + "\n");
-		logfile.flush();
+
+	public void logStep(String step, String path) throws IOException {
+		log("STEP " + step + " " + path + "\n");
 	}
-	
-	public synchronized void logReDepublish(String path) throws IOException {
-		openAppend(logfilePath);
-		logfile.write("RE-DEPUBLICATION_NEEDED " + path + "\n");
-		logfile.flush();
+
+	public void logError(String path, String error) throws IOException {
+		log("ERROR " + path + " : " + error + "\n");
+	}
+
+	public void logUnverified(String path, String reason) throws IOException {
+		log("UNVERIFIED " + path + " : " + reason + "\n");
+	}
+
+	public void logRePublish(String path) throws IOException {
+		log("REPUBLICATION_NEEDED " + path + "\n");
+	}
+
+	public void logReDepublish(String path) throws IOException {
+		log("RE-DEPUBLICATION_NEEDED " + path + "\n");
+	}
+
+	private void log(String record) throws IOException {
+		// report a failed writer to the caller, since its records can no longer be written
+		if (writeError != null) {
+			throw writeError;
+		}
+		records.add(record);
+	}
+
+	private void writeRecords() {
+		List<String> batch = new ArrayList<String>();
+		long lastFlush = 0;
+		int unflushed = 0;
+		boolean done = false;
+		while (!done) {
+			try {
+				String record;
+				if (unflushed == 0) {
+					record = records.take();
+				} else {
+					long wait = lastFlush + flushMillis - System.currentTimeMillis();
+					record = records.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+				}
+				if (record != null) {
+					batch.add(record);
+					records.drainTo(batch);
+				}
+				if (logfile == null) {
+					throw new IOException("Unable to open logfile '" + logfilePath + "'");
+				}
+				for (String r : batch) {
+					if (r == END) {
+						done = true;
+						continue;
+					}
+					logfile.write(r);
+					unflushed++;
+				}
+				batch.clear();
+				long now = System.currentTimeMillis();
+				if (unflushed > 0 && (done || unflushed >= flushRecords || now - lastFlush >= flushMillis)) {
+					logfile.flush();
+					if (sync) {
+						stream.getChannel().force(false);
+					}
+					unflushed = 0;
+					lastFlush = now;
+				}
+			} catch (InterruptedException e) {
+				done = true;
+			} catch (IOException e) {
+				Log.error("Unable to write to logfile '" + logfilePath + "': " + e.getMessage());
+				writeError = e;
+				done = true;
+			}
+		}
 	}
 
-	public static Set<String> slurpCompletedObjects(String path) throws IOException  {
-		Set<String> out = new HashSet<String>();
+	public static CompletedIndex slurpCompletedObjects(String path) throws IOException  {
+		return slurp(path, false);
+	}
+
+	/**
+	 * An audit only skips the objects that an earlier audit has verified.
+	 */
+	public static CompletedIndex slurpAuditedObjects(String path) throws IOException  {
+		return slurp(path, true);
+	}
+
+	private static CompletedIndex slurp(String path, boolean audited) throws IOException  {
+		CompletedIndex out = new CompletedIndex();
 		BufferedReader br;
 		try {
 			br = new BufferedReader(new FileReader(path));
@@ -73,16 +197,31 @@ public class LogFile {
 		try {
 			String line = br.readLine();
 			while (line != null) {
-				if (line.startsWith("OK ")) {
+				if (audited) {
+					if (line.startsWith("AUDITED ")) {
+						out.add(line.substring(8));
+					}
+				} else if (line.startsWith("OK ")) {
 					String objPath = line.substring(3);
 					out.add(objPath);
+				} else if (line.startsWith("STEP ")) {
+					int pathStart = line.indexOf(' ', 5);
+					if (pathStart > 0) {
+						try {
+							Precondition step = Precondition.valueOf(line.substring(5, pathStart));
+							out.add(line.substring(pathStart + 1), (byte) step.ordinal());
+						} catch (IllegalArgumentException e) {
+							// not a step of this version, ignore
+						}
+					}
 				}
 				line = br.readLine();
 			}
 		} finally {
 			br.close();
 		}
+		out.seal();
 		return out;
 	}
-	
+
 }
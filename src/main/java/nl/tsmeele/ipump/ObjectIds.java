@@ -0,0 +1,43 @@
+package nl.tsmeele.ipump;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * ObjectIds assigns compact integer ids to the objects that take part in the task graph.
+ * 
+ * Data objects are only ever referred to by their own tasks, hence they just receive the next id.
+ * Collections are referred to by the tasks of their members, we keep a map from path to id
+ * so that the id of a parent collection can be looked up.
+ * 
+ * @author ton
+ *
+ */
+public class ObjectIds {
+	private HashMap<String, Integer> collections = new HashMap<String, Integer>();
+	private BitSet collectionIds = new BitSet();
+	private int nextId = 0;
+	
+	public synchronized int collection(String collPath) {
+		Integer id = collections.get(collPath);
+		if (id == null) {
+			id = nextId++;
+			collections.put(collPath, id);
+			collectionIds.set(id);
+		}
+		return id;
+	}
+	
+	public synchronized int dataObject() {
+		return nextId++;
+	}
+	
+	public synchronized boolean isCollection(int id) {
+		return collectionIds.get(id);
+	}
+	
+	public synchronized int size() {
+		return nextId;
+	}
+	
+}
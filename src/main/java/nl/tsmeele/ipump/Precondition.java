@@ -0,0 +1,42 @@
+package nl.tsmeele.ipump;
+
+/**
+ * Precondition qualifies the state of an object that tasks may wait for.
+ * 
+ * A precondition is combined with the integer id of the object into a single long key,
+ * which is used by the TaskGraph to queue tasks that are blocked on the precondition.
+ * 
+ * @author ton
+ *
+ */
+public enum Precondition {
+	// the object exists at the destination
+	EXISTS,
+	// the rodsadmin has sufficient access to the object at the destination
+	ADMIN_HAS_ACCESS,
+	// AVUs have been added to the object at the destination
+	AVU_ADDED,
+	// any republication reminder has been processed for the collection
+	REPUBLISHED;
+	
+	// number of low order bits of a key that hold the precondition kind
+	private static final int KIND_BITS = 3;
+	private static final Precondition[] KINDS = values();
+	
+	public long key(int objId) {
+		return ((long) objId << KIND_BITS) | ordinal();
+	}
+	
+	public static Precondition kindOf(long key) {
+		return KINDS[(int) (key & ((1 << KIND_BITS) - 1))];
+	}
+	
+	public static int objectIdOf(long key) {
+		return (int) (key >>> KIND_BITS);
+	}
+	
+	public static String toString(long key) {
+		return kindOf(key).name() + ":" + objectIdOf(key);
+	}
+	
+}
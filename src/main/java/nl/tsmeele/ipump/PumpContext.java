@@ -15,6 +15,8 @@ public class PumpContext {
             "destination_password", "destination_auth_scheme"};
 	private static final String CONFIG_FILE = PROGRAM_NAME + ".ini";
 	private static final String LOG_FILE = PROGRAM_NAME + ".log";
+	// small objects are held in memory while they are transferred
+	private static final long MAX_SMALL_FILE = 16 * 1024 * 1024;
 	
 	// commandline info that can be queried after processing:
 	public HashMap<String,String> options = new HashMap<String,String>();
@@ -30,7 +32,28 @@ public class PumpContext {
 	public boolean resume = false;
 	public String resumeFile = LOG_FILE;
 	public String logFile = LOG_FILE;
+	public String snapshotFile = null;
+	public long logFlushMillis = LogFile.DEFAULT_FLUSH_MILLIS;
+	public int logFlushRecords = LogFile.DEFAULT_FLUSH_RECORDS;
+	public boolean logSync = false;
 	public int threads = 1;
+	public String tierSpec = null;
+	public TransferTiers tiers = null;
+	public int maxStreams = 0;
+	public long smallFiles = 0;
+	public int batchSize = 100;
+	public boolean preScan = false;
+	public String checksum = null;
+	public boolean audit = false;
+	public double samplePercent = 100.0;
+	public int enumThreads = 1;
+	public int pageSize = IrodsQuery.MAX_PAGE_SIZE;
+	public int runners = 2;
+	public int userRunners = 1;
+	public boolean adaptive = false;
+	public boolean stream = false;
+	public boolean fuse = false;
+	public int window = 10000;
 	public boolean usage = false;
 	
 	// information added during session by PumpMain, after connections have been established
@@ -39,6 +62,11 @@ public class PumpContext {
 	public IrodsObject sourceObject = null;
 	public IrodsObject destObject = null;
 	public LogFile log = null;
+	public DestinationCache destCache = null;
+	public AvuCache avuCache = null;
+	public AvuCache destAvuCache = null;
+	// cleared once the destination turns out to lack msi_atomic_apply_metadata_operations
+	public volatile boolean destAtomicAvus = true;
 	
 	
 	public void processArgs(String[] args) throws MyRodsException {
@@ -78,6 +106,13 @@ public class PumpContext {
 					}
 					break;
 				}
+				case "-snapshot": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						snapshotFile = args[argIndex];
+					}
+					break;
+				}
 				case "-l":
 				case "-log": {
 					if (argIndex < args.length + 1) {
@@ -86,6 +121,34 @@ public class PumpContext {
 					}
 					break;
 				}
+				case "-logflush": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							logFlushMillis = Long.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default flush interval in case of parse error */ 
+						}
+					}
+					if (logFlushMillis < 0) logFlushMillis = 0;
+					break;
+				}
+				case "-logbatch": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							logFlushRecords = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default number of records in case of parse error */ 
+						}
+					}
+					if (logFlushRecords < 1) logFlushRecords = 1;
+					break;
+				}
+				case "-logsync": {
+					logSync = true;
+					break;
+				}
 				case "-t":
 				case "-threads": {
 					if (argIndex < args.length + 1) {
@@ -99,6 +162,154 @@ public class PumpContext {
 					if (threads < 1) threads = 1;
 					break;
 				}
+				case "-tiers": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						tierSpec = args[argIndex];
+					}
+					break;
+				}
+				case "-maxstreams": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							maxStreams = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep unlimited streams in case of parse error */ 
+						}
+					}
+					if (maxStreams < 0) maxStreams = 0;
+					break;
+				}
+				case "-smallfiles": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							smallFiles = Long.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep small object batches disabled in case of parse error */ 
+						}
+					}
+					if (smallFiles < 0) smallFiles = 0;
+					if (smallFiles > MAX_SMALL_FILE) smallFiles = MAX_SMALL_FILE;
+					break;
+				}
+				case "-batch": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							batchSize = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default batch size in case of parse error */ 
+						}
+					}
+					if (batchSize < 1) batchSize = 1;
+					break;
+				}
+				case "-checksum": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						checksum = args[argIndex].toLowerCase();
+					}
+					if (!Checksum.isSupported(checksum)) {
+						usage = true;
+					}
+					break;
+				}
+				case "-audit": {
+					audit = true;
+					break;
+				}
+				case "-sample": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							samplePercent = Double.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep auditing all objects in case of parse error */ 
+						}
+					}
+					if (samplePercent <= 0.0 || samplePercent > 100.0) samplePercent = 100.0;
+					break;
+				}
+				case "-prescan": {
+					preScan = true;
+					break;
+				}
+				case "-enumthreads": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							enumThreads = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default enumeration threads in case of parse error */ 
+						}
+					}
+					if (enumThreads < 1) enumThreads = 1;
+					break;
+				}
+				case "-pagesize": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							pageSize = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default page size in case of parse error */ 
+						}
+					}
+					if (pageSize < 1) pageSize = 1;
+					if (pageSize > IrodsQuery.MAX_PAGE_SIZE) pageSize = IrodsQuery.MAX_PAGE_SIZE;
+					break;
+				}
+				case "-r":
+				case "-runners": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							runners = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default runners in case of parse error */ 
+						}
+					}
+					if (runners < 1) runners = 1;
+					break;
+				}
+				case "-userrunners": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							userRunners = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default runners per user in case of parse error */ 
+						}
+					}
+					if (userRunners < 1) userRunners = 1;
+					break;
+				}
+				case "-adaptive": {
+					adaptive = true;
+					break;
+				}
+				case "-stream": {
+					stream = true;
+					break;
+				}
+				case "-fuse": {
+					fuse = true;
+					break;
+				}
+				case "-window": {
+					if (argIndex < args.length + 1) {
+						argIndex++;
+						try {
+							window = Integer.valueOf(args[argIndex]);
+						} catch (NumberFormatException e) { 
+							/* keep default window in case of parse error */ 
+						}
+					}
+					if (window < 1) window = 1;
+					break;
+				}
 				// add new options above this line
 				case "-h":
 				case "-help":
@@ -110,6 +321,16 @@ public class PumpContext {
 			argIndex++;
 		}
 		
+		// objects of all sizes use the same number of threads unless tiers have been specified
+		tiers = new TransferTiers(threads);
+		if (tierSpec != null) {
+			try {
+				tiers = new TransferTiers(tierSpec, threads);
+			} catch (IllegalArgumentException e) {
+				usage = true;
+			}
+		}
+		
 		// process the remaining, non-option, arguments
 		if (argIndex < args.length) {
 			sourceObjPath = args[argIndex++];
@@ -147,8 +368,35 @@ public class PumpContext {
 				"-help, -h, -?           : exit after showing this usage text.\n" +
 				"-verbose, -v            : print names of processed objects.\n" +
 				"-log, -l                : specify name of logfile (default is '" + LOG_FILE + "')\n" +
+				"-logflush <millis>      : flush the logfile at least every <millis> ms. Default is " + LogFile.DEFAULT_FLUSH_MILLIS + ".\n" +
+				"-logbatch <#records>    : flush the logfile once <#records> are pending. Default is " + LogFile.DEFAULT_FLUSH_RECORDS + ".\n" +
+				"-logsync                : force the logfile to disk at each flush.\n" +
 				"-resume <logfile>       : resume an aborted operation, using logfile from previous operation\n" +
+				"-snapshot <file>        : save the listing of the source collection to file, a resumed operation\n" +
+				"                          loads the listing from this file and only lists modified collections again\n" +
 				"-threads <#threads>, -t : specify number of parallel threads to use. Default is 1 thread.\n" +
+				"-tiers <tiers>          : specify threads per object size as <size>:<#threads>,... e.g. '64K:1,1G:4,:16' uses\n" +
+				"                          1 thread below 64 KB, 4 below 1 GB and 16 for larger objects. Default is -threads.\n" +
+				"-maxstreams <#streams>  : specify max number of additional parallel streams of all transfers together.\n" +
+				"                          Default is 0 (unlimited).\n" +
+				"-smallfiles <bytes>     : transfer data objects smaller than <bytes> in pipelined batches. Default is 0 (off),\n" +
+				"                          max is " + MAX_SMALL_FILE + ".\n" +
+				"-batch <#objects>       : specify max number of small data objects per batch. Default is 100.\n" +
+				"-checksum <sha256|md5>  : verify transferred objects by checksum, computed while the data is transferred.\n" +
+				"                          The algorithm applies to objects that lack a checksum at source.\n" +
+				"                          Objects are transferred by a single stream, an interrupted transfer is restarted.\n" +
+				"-audit                  : do not transfer, verify that objects copied earlier have the same checksum\n" +
+				"                          at source and destination. Both servers compute checksums anew.\n" +
+				"-sample <percent>       : audit a fixed sample of <percent> of the data objects. Default is 100.\n" +
+				"-prescan                : list each destination collection once to decide which objects need a transfer.\n" +
+				"-enumthreads <#threads> : specify number of parallel connections to list the source collection. Default is 1.\n" +
+				"-pagesize <#rows>       : specify max number of rows per catalog query page. Default (and max) is " + IrodsQuery.MAX_PAGE_SIZE + ".\n" +
+				"-runners <#runners>, -r : specify number of parallel task runners (server sessions). Default is 2.\n" +
+				"-userrunners <#runners> : specify max number of parallel task runners per object owner. Default is 1.\n" +
+				"-adaptive               : adapt the number of runners to observed throughput, up to the -runners maximum.\n" +
+				"-stream                 : start transfers while the source collection is still being enumerated.\n" +
+				"-fuse                   : run the steps of a data object that run as rodsadmin as a single task.\n" +
+				"-window <#objects>      : specify max number of data objects in flight when streaming. Default is 10000.\n" +
 		        "-config <configfile>    :\n" +
 		        "   The configfile is a local path to a textfile with configuration key=value lines.\n" +
 		        "\nConfiguration file keywords:\n" +
@@ -171,7 +419,20 @@ public class PumpContext {
 			"verbose / debug / usage      = " + verbose + " / " + debug + " / " + usage + "\n" +
 			"resume : file                = " + resume + " : " + resumeFile + "\n" +
 			"logfile                      = " + logFile + "\n" +
+			"log flush ms / records (sync)= " + logFlushMillis + " / " + logFlushRecords + " (" + logSync + ")\n" +
+			"snapshot                     = " + snapshotFile + "\n" +
 			"threads                      = " + threads + "\n" +
+			"tiers (max streams)          = " + tiers + " (" + maxStreams + ")\n" +
+			"small files : batch size     = " + smallFiles + " : " + batchSize + "\n" +
+			"checksum                     = " + checksum + "\n" +
+			"audit (sample %)             = " + audit + " (" + samplePercent + ")\n" +
+			"destination prescan          = " + preScan + "\n" +
+			"enumeration threads          = " + enumThreads + "\n" +
+			"query page size              = " + pageSize + "\n" +
+			"runners (adaptive)           = " + runners + " (" + adaptive + ")\n" +
+			"runners per user             = " + userRunners + "\n" +
+			"stream (window)              = " + stream + " (" + window + ")\n" +
+			"fuse data object steps       = " + fuse + "\n" +
 			"sHost : sPort                = " + sHost + " : " + sPort + "\n" +
 			"sUsername # sZone (sAuthPam) = " + sUserName + " # " + sZone + " (" + sAuthPam + ")\n" +
 			"sPassword                    = " + (sPassword == null || sPassword.equals("")? "null" : "*redacted*") + "\n" +
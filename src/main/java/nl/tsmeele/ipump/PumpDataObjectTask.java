@@ -1,6 +1,7 @@
 package nl.tsmeele.ipump;
 
 import java.io.IOException;
+import java.security.MessageDigest;
 
 import nl.tsmeele.log.Log;
 import nl.tsmeele.myrods.api.AccessType;
@@ -8,9 +9,6 @@ import nl.tsmeele.myrods.api.DataObjInp;
 import nl.tsmeele.myrods.api.ObjType;
 import nl.tsmeele.myrods.api.RodsObjStat;
 import nl.tsmeele.myrods.high.DataObject;
-import nl.tsmeele.myrods.high.DataTransfer;
-import nl.tsmeele.myrods.high.DataTransferMultiThreaded;
-import nl.tsmeele.myrods.high.DataTransferSingleThreaded;
 import nl.tsmeele.myrods.high.IrodsUser;
 import nl.tsmeele.myrods.high.PosixFileFactory;
 import nl.tsmeele.myrods.high.Replica;
@@ -18,8 +16,8 @@ import nl.tsmeele.myrods.high.Replica;
 public class PumpDataObjectTask extends Task {
 	private DataObject dataObj;
 
-	public PumpDataObjectTask(IrodsUser clientUser, boolean runAsAgent, String precondition, DataObject dataObj) {
-		super(clientUser, runAsAgent, precondition);
+	public PumpDataObjectTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, DataObject dataObj) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.dataObj = dataObj;
 	}
 
@@ -40,41 +38,97 @@ public class PumpDataObjectTask extends Task {
 		}
 		
 		
+		// with a prescan, the listing of the destination collection tells whether the object exists
+		boolean listed = false;
+		Long listedSize = null;
+		if (context.ctx.destCache != null) {
+			try {
+				listedSize = context.ctx.destCache.size(context.dest, context.destCollectionPath(dataObj), dataObj.dataName);
+				listed = true;
+			} catch (IOException e) {
+				Log.debug(e.getMessage() + ", checking destination object instead");
+			}
+		}
+		if (listedSize != null && listedSize == dataObj.dataSize) {
+			Log.info("Copy exists and matches source object: " + dataObj.getPath());
+			stepDone(Precondition.EXISTS, dataObj.getPath());
+			return null;
+		}
+		
 		Log.info("...copying from " + dataObj.getPath() + " to " + destPath);
 		
 		Replica sourceReplica = PosixFileFactory.createReplica(context.source, dataObj.getPath());
 		Replica destReplica = PosixFileFactory.createReplica(context.dest, destPath);
 		
 		// copy the data object, but do not overwrite any existing object at destination
+		// unless it is the partial copy left by an interrupted transfer
 		boolean alreadyExists = false;
-		if (destReplica.isFile()) {
-			alreadyExists = true;
-			String msg = "Skipping transfer as destination object already exists: '" + destPath + "'";
-			Log.info(msg);
-		} else {
-			// copy the data object
-			DataTransfer tx = null;
-			if (context.ctx.threads < 2) {
-				tx = new DataTransferSingleThreaded(sourceReplica, destReplica);
+		long offset = 0;
+		if (listed ? listedSize != null : destReplica.isFile()) {
+			offset = resumeOffset(sourceReplica, destReplica);
+			if (offset > 0 && context.ctx.checksum != null) {
+				// the digest must cover all bytes, hence the partial copy is transferred again
+				Log.info("Restarting interrupted transfer of '" + destPath + "' to compute its checksum");
+				removePartialObject(destPath);
+				offset = 0;
+			} else if (offset > 0) {
+				Log.info("Resuming interrupted transfer of '" + destPath + "' at offset " + offset);
 			} else {
-				tx = new DataTransferMultiThreaded(sourceReplica, destReplica);
-				((DataTransferMultiThreaded) tx).setThreads(context.ctx.threads);
+				alreadyExists = true;
+				String msg = "Skipping transfer as destination object already exists: '" + destPath + "'";
+				Log.info(msg);
+			}
+		}
+		String sourceChecksum = null;
+		MessageDigest digest = null;
+		if (!alreadyExists) {
+			// copy the data object
+			ResumableTransfer tx = new ResumableTransfer(sourceReplica, destReplica, dataObj.dataSize, offset);
+			if (context.ctx.checksum != null) {
+				// the transferred bytes are digested with the scheme of the source checksum
+				sourceChecksum = IrodsQuery.getChecksums(context.source, dataObj.collName, dataObj.dataName).get(dataObj.dataName);
+				tx.setDigest(Checksum.digestFor(sourceChecksum, context.ctx.checksum));
 			}
+			// the number of streams depends on the size tier of the object, and is capped by the streams available
+			// (a digest requires the bytes to pass in order through a single stream)
+			int wanted = context.ctx.checksum != null ? 1 : Math.min(context.ctx.tiers.threadsFor(dataObj.dataSize), tx.usefulStreams());
+			int extraStreams = context.scheduler.acquireStreams(wanted - 1);
+			if (extraStreams < wanted - 1) {
+				Log.debug("Transfer of " + dataObj.getPath() + " limited to " + (1 + extraStreams) + " of " + wanted + " streams");
+			}
+			tx.setThreads(1 + extraStreams);
 			try {
 				tx.transfer();
+				context.scheduler.bytesTransferred(dataObj.dataSize - offset);
+				digest = tx.digest();
 			} catch (IOException e) {
-				String msg = "Transfer failed with exception: " + e.getMessage();
-				context.ctx.log.logError(dataObj.getPath(), msg);
-				Log.info(dataObj.getPath() + ": " + msg);
-				removePartialObject(destPath);
-				// the failed transfer makes current connection unreliable, signal next task needs a new connection
-				context.disconnect();
-				return false;
+				if (offset == 0 && tx.completed() == 0 && context.dest.error && context.dest.intInfo == OBJECT_EXISTS) {
+					// the object has been created after the destination collection was listed
+					alreadyExists = true;
+					Log.info("Skipping transfer as destination object already exists: '" + destPath + "'");
+				} else {
+					String msg = "Transfer failed with exception: " + e.getMessage();
+					context.ctx.log.logError(dataObj.getPath(), msg);
+					Log.info(dataObj.getPath() + ": " + msg);
+					// a partial copy that cannot be resumed would be taken for a foreign object
+					if (ResumableTransfer.resumeOffset(tx.completed()) == 0) {
+						removePartialObject(destPath);
+					} else {
+						// keep the partial copy, a next attempt continues where this one stopped
+						Log.info("Keeping partial copy of " + tx.completed() + " bytes at destination for resume");
+					}
+					// the failed transfer makes current connection unreliable, signal next task needs a new connection
+					context.disconnect();
+					return false;
+				}
+			} finally {
+				context.scheduler.releaseStreams(extraStreams);
 			}
 		}
 		
 		// assert that all content of data object now is present at destination
 		// running a checksum is time-intensive on large objects, we will use data size instead
+		// (unless checksums are requested, see verifyChecksum)
 		RodsObjStat objStat = context.dest.rcObjStat(destPath, ObjType.DATAOBJECT);
 		if (context.dest.error) {
 			String msg = "iRODS error: " + context.dest.intInfo + " (at destination)";
@@ -94,19 +148,51 @@ public class PumpDataObjectTask extends Task {
 			return false;
 		}
 		
+		if (!alreadyExists && context.ctx.checksum != null 
+				&& !context.verifyChecksum(dataObj.getPath(), destPath, sourceChecksum, digest == null ? null : Checksum.format(digest))) {
+			removePartialObject(destPath);
+			return false;
+		}
+		
 		// transfer is successful
 		if (alreadyExists) {
 			Log.info("Copy exists and matches source object: " + dataObj.getPath());
 		} else {
 			Log.info("Copied and OK: " + dataObj.getPath());
 		}
-		context.ctx.log.logDone(dataObj.getPath());
 		
-		// unblock queued tasks that have this object as precondition
-		context.scheduler.unblock(dataObj.getPath());
+		// journal the transfer and unblock queued tasks that have this object as precondition
+		// (the object is logged as done once its remaining steps have completed)
+		stepDone(Precondition.EXISTS, dataObj.getPath());
 		return null;
 	}
 
+	@Override
+	public long priority() {
+		// largest objects are transferred first
+		return TRANSFER_PRIORITY + dataObj.dataSize;
+	}
+
+	/**
+	 * Determines whether an existing destination object is the partial copy of an interrupted transfer.
+	 * @return offset to continue the transfer from, or 0 if the transfer cannot be resumed
+	 */
+	private long resumeOffset(Replica sourceReplica, Replica destReplica) throws IOException {
+		Long destSize = destReplica.getFileSize();
+		if (destSize == null || destSize >= dataObj.dataSize) {
+			return 0;
+		}
+		long offset = ResumableTransfer.resumeOffset(destSize);
+		if (offset == 0) {
+			return 0;
+		}
+		if (!ResumableTransfer.verifyPrefix(sourceReplica, destReplica, offset)) {
+			Log.info("Existing destination object is not a partial copy of " + dataObj.getPath());
+			return 0;
+		}
+		return offset;
+	}
+
 	private void removePartialObject(String destPath) {
 		DataObjInp dataObjInp = new DataObjInp(destPath, null);
 		try {
@@ -4,10 +4,7 @@ package nl.tsmeele.ipump;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 import nl.tsmeele.log.Log;
 import nl.tsmeele.log.LogLevel;
@@ -46,16 +43,17 @@ public class PumpMain {
 		Log.info("Logged in with rodsadmin privs on source and destination server");
 		
 		// If requested, find objects in resume log that have been processed already, we can skip those
-		final Set<String> excludeList;
+		final CompletedIndex excludeList;
 		if (ctx.resume) {
-			excludeList = LogFile.slurpCompletedObjects(ctx.resumeFile);
+			excludeList = ctx.audit ? LogFile.slurpAuditedObjects(ctx.resumeFile) : LogFile.slurpCompletedObjects(ctx.resumeFile);
 			if (excludeList == null) {
 				Log.error("Unable to open resume file '" + ctx.resumeFile + "'");
 				System.exit(4);
 			}
-			Log.debug("Resume file analyzed");
+			Log.debug("Resume file analyzed, " + excludeList.size() + " completed objects indexed using " 
+					+ String.format("%.1f", excludeList.bytesPerEntry()) + " bytes per entry, heap in use is " + heapInUse() + " MB");
 		} else {
-			excludeList = new HashSet<String>();
+			excludeList = new CompletedIndex();
 		}
 		
 		// assert command line argument source/destination objects (+ type) exist on relevant server
@@ -70,9 +68,15 @@ public class PumpMain {
 		}
 		
 		boolean yodaError = false;
-		// Yoda specific: refuse processing if an active workflow is found in source collection tree
+		// Yoda specific: refuse processing if an active workflow or lock is found in source collection tree
 		if (ctx.sourceObject.isCollection()) {
-			List<Collection> workflows = nl.tsmeele.ipump.IrodsQuery.findYodaWorkflowInCollections(source, ctx.sourceObjPath);
+			List<Collection> locks = new ArrayList<Collection>();
+			List<Collection> workflows = new ArrayList<Collection>();
+			if (!IrodsQuery.findYodaLocksAndWorkflows(source, ctx.sourceObjPath, locks, workflows)) {
+				// without the query we cannot tell that the tree is free of locks and workflows
+				Log.error("Unable to query source collection for Yoda locks and workflows.");
+				closeConnectionsAndExit(7);
+			}
 			if (!workflows.isEmpty()) {
 				yodaError = true;
 				Log.error("Unable to proceed, because source collection has active Yoda workflow:");
@@ -80,11 +84,6 @@ public class PumpMain {
 					Log.info("Active workflow collection = " + coll.collName);
 				}
 			}
-		}
-		
-		// Yoda specific: refuse processing if an active lock is found in source collection tree
-		if (ctx.sourceObject.isCollection()) {
-			List<Collection> locks = IrodsQuery.findYodaLockedCollections(source, ctx.sourceObjPath);
 			if (!locks.isEmpty()) {
 				yodaError = true;
 				Log.error("Unable to proceed, because source collection has Yoda lock:");
@@ -98,143 +97,107 @@ public class PumpMain {
 			closeConnectionsAndExit(7);
 		}
 		
-		// create a list of all objects on the source server that will need to be transferred
-		List<DataObject> dataList = new ArrayList<DataObject>();
-		List<Collection> collList = new ArrayList<Collection>();
-		if (ctx.sourceObject.isDataObject()) {
-			Log.debug("Source object is a data object");
-			// user wants just a single data object to be transferred
-			dataList.add((DataObject)ctx.sourceObject);
-		} else {
-			// collect all objects located in the source collection and its subcollections
-			Log.debug("Source object is a collection (will query to obtain a list of its members)");
-			dataList = IrodsQuery.getDataObjects(source, ctx.sourceObject.getPath(), true);
-			collList = IrodsQuery.getSubCollections(source, ctx.sourceObject.getPath(), true);
-		}
-		
-		// remove objects listed in our exclude list (contains successful transfers as per resume log)
-		// but keep a list of excluded collections, this is needed to check access and unblock underlying objects
-		int dataCount = dataList.size();
-		int collCount = collList.size();
-		Log.info("Source object consists of " + dataList.size() + " data objects and " + collList.size() + " subcollections");
-		dataList.removeIf(obj -> excludeList.contains(obj.getPath())); 
-		List<Collection> excludedCollections = new ArrayList<Collection>();
-		for (Collection coll:collList) {
-			if (excludeList.contains(coll.getPath())) {
-				excludedCollections.add(coll);
-			}
-		}
-		collList.removeIf(obj -> excludeList.contains(obj.getPath()));
-		int dataDiff = dataCount - dataList.size();
-		int collDiff = collCount - collList.size();
-		if (dataDiff > 0) {
-			Log.info("Skipping " + dataDiff + " data objects found in resume log");
-		}
-		if (collDiff > 0) {
-			Log.info("Skipping " + collDiff + " subcollections found in resume log");
-		}
-		
-		// assemble a set of unique object creators, we aim to act on their behalf during the transfers 
-		HashSet<IrodsUser> creators = new HashSet<IrodsUser>();
-		for (IrodsObject obj : dataList) {
-			creators.add(obj.owner);
-		}
-		for (IrodsObject obj : collList) {
-			creators.add(obj.owner);
-		}
-		
-		/* 
-		 * remove creators from this set if: 
-		 * a) they no longer exist on source or destination 
-		 * b) if it is a non-local account on the source, since we cannot map them
-		 *   (in that case we probably should not assume user#sourceZone == user#destZone) 
-		 */
 		ctx.sourceLocalZone = source.getLocalZone();
 		ctx.destLocalZone = dest.getLocalZone();
 		if (ctx.sourceLocalZone == null || ctx.destLocalZone == null) {
 			Log.error("Unable to obtain localzone name from source and/or destination server");
 			closeConnectionsAndExit(8);	
 		}
-		// (b) remove non-local users
-		int nCreators = creators.size();
-		creators.removeIf(user -> !user.zone.equals(ctx.sourceLocalZone));
-		if (creators.size() < nCreators) {
-			Log.debug("Found " + (nCreators - creators.size()) + " non-local object(s) owners on source server");
-			nCreators = creators.size();
+		
+		// schedule tasks for each object, objects are identified in the task graph by an integer id
+		ObjectIds ids = new ObjectIds();
+		TaskScheduler scheduler = new TaskScheduler(ctx, new RunnerController(ctx.runners, ctx.adaptive), ids);
+		TaskProducer producer = new TaskProducer(ctx, scheduler, ids, source, dest, sourceAdmin, excludeList);
+		String sourceRoot = ctx.sourceObject.isCollection() ? ctx.sourceObject.getPath() : ctx.sourceObject.getParentPath();
+		int rootId = ids.collection(sourceRoot);
+		// when streaming, the producer walks the source collection while tasks execute
+		boolean streaming = ctx.stream && ctx.sourceObject.isCollection();
+		if (streaming && ctx.snapshotFile != null) {
+			Log.info("A snapshot requires the source collection to be listed up front, tasks will not be streamed");
+			streaming = false;
 		}
-		// (a) remove users that do not exist on source or destination
-		for (Iterator<IrodsUser> it = creators.iterator(); it.hasNext();) {
-			IrodsUser user = it.next();
-			if (source.getUserType(user.name, ctx.sourceLocalZone) == null
-					|| dest.getUserType(user.name, ctx.destLocalZone) == null) {
-				it.remove();
+		List<DataObject> dataList = new ArrayList<DataObject>();
+		List<Collection> collList = new ArrayList<Collection>();
+		if (!streaming) {
+			// create a list of all objects on the source server that will need to be transferred
+			if (ctx.sourceObject.isDataObject()) {
+				Log.debug("Source object is a data object");
+				// user wants just a single data object to be transferred
+				dataList.add((DataObject)ctx.sourceObject);
+			} else {
+				long listed = timeStamp();
+				Snapshot snapshot = null;
+				if (ctx.resume && ctx.snapshotFile != null) {
+					// the snapshot of the aborted operation only needs to be brought up to date
+					snapshot = Snapshot.read(ctx.snapshotFile);
+					if (snapshot != null && !snapshot.sourceRoot.equals(ctx.sourceObject.getPath())) {
+						Log.info("Snapshot '" + ctx.snapshotFile + "' is of another source collection, ignored");
+						snapshot = null;
+					}
+					if (snapshot != null) {
+						snapshot.refresh(source, listed);
+					}
+				}
+				if (snapshot == null) {
+					// collect all objects located in the source collection and its subcollections
+					Log.debug("Source object is a collection (will query to obtain a list of its members)");
+					if (ctx.enumThreads > 1) {
+						dataList = IrodsQuery.getDataObjectsParallel(source, ctx.sourceObject.getPath(), ctx.enumThreads);
+					} else {
+						dataList = IrodsQuery.getDataObjects(source, ctx.sourceObject.getPath(), true);
+					}
+					collList = IrodsQuery.getSubCollections(source, ctx.sourceObject.getPath(), true);
+					snapshot = new Snapshot(listed, ctx.sourceObject.getPath(), collList, dataList);
+				}
+				dataList = snapshot.dataObjects;
+				collList = snapshot.collections;
+				if (ctx.snapshotFile != null) {
+					try {
+						snapshot.write(ctx.snapshotFile);
+					} catch (IOException e) {
+						Log.warning("Unable to write snapshot '" + ctx.snapshotFile + "': " + e.getMessage());
+					}
+				}
 			}
-		}
-		if (creators.size() < nCreators) {
-			Log.debug("Found " + (nCreators - creators.size())
-					+ " object(s) owners that do not exist on source or destination");
-		}
-		
-		// schedule tasks for each object
-		int clientThreads = 2;
-		TaskScheduler scheduler = new TaskScheduler(ctx, clientThreads);
-		for (Collection coll : collList) {
-			IrodsUser agent = sourceAdmin;
-			boolean runAsAgent = false;
-			if (creators.contains(coll.owner)) {
-				agent = coll.owner;
-				runAsAgent = true;
+			
+			// remove objects listed in our exclude list (contains successful transfers as per resume log)
+			// but keep a list of excluded collections, this is needed to check access and unblock underlying objects
+			int dataCount = dataList.size();
+			int collCount = collList.size();
+			Log.info("Source object consists of " + dataList.size() + " data objects and " + collList.size() + " subcollections");
+			dataList.removeIf(obj -> excludeList.contains(obj.getPath())); 
+			List<Collection> excludedCollections = new ArrayList<Collection>();
+			for (Collection coll:collList) {
+				if (excludeList.contains(coll.getPath())) {
+					excludedCollections.add(coll);
+				}
 			}
-			// a collection can be created once its parent collection exists
-			scheduler.addBlockedTask(new CreateCollectionTask(agent, runAsAgent, coll.getParentPath(), coll));
-			// admin access can be added to a collection once the collection exists
-			scheduler.addBlockedTask(new AddAdminAccessToCollectionTask(sourceAdmin, false, coll.getPath(), coll));
-			// AVUs can be added to a collection once the rodsadmin has sufficient access to that collection
-			scheduler.addBlockedTask(new AddCollectionAvusTask(sourceAdmin, false, Task.ADMIN_HAS_ACCESS + coll.getPath(), coll));
-			// if needed, add reminder in logfile to republish a data package once AVUs have been added to the collection
-			scheduler.addBlockedTask(new RepublishCollectionTask(sourceAdmin, false, Task.AVU_ADDED + coll.getPath(), coll));
-			// Log collection done once any republication reminder has been processed for the collection
-			scheduler.addBlockedTask(new LogCollectionDoneTask(sourceAdmin, false, Task.REPUBLISHED + coll.getPath(), coll));
-		}
-		// for skipped collections, schedule tasks so that underlying objects can be unblocked
-		for (Collection coll : excludedCollections) {
-			IrodsUser agent = sourceAdmin;
-			boolean runAsAgent = false;
-			if (creators.contains(coll.owner)) {
-				agent = coll.owner;
-				runAsAgent = true;
+			collList.removeIf(obj -> excludeList.contains(obj.getPath()));
+			int dataDiff = dataCount - dataList.size();
+			int collDiff = collCount - collList.size();
+			if (dataDiff > 0) {
+				Log.info("Skipping " + dataDiff + " data objects found in resume log");
 			}
-			// a collection can be created once its parent collection exists
-			scheduler.addBlockedTask(new CreateCollectionTask(agent, runAsAgent, coll.getParentPath(), coll));
-			// admin access can be added to a collection once the collection exists
-			scheduler.addBlockedTask(new AddAdminAccessToCollectionTask(sourceAdmin, false, coll.getPath(), coll));
-		}
-		for (DataObject data : dataList) {
-			IrodsUser agent = sourceAdmin;
-			boolean runAsAgent = false;
-			if (creators.contains(data.owner)) {
-				agent = data.owner;
-				runAsAgent = true;
+			if (collDiff > 0) {
+				Log.info("Skipping " + collDiff + " subcollections found in resume log");
 			}
-			// a data object can be copied once the rodsadmin has sufficient access to the collection in which it will reside
-			scheduler.addBlockedTask(new PumpDataObjectTask(agent, runAsAgent, Task.ADMIN_HAS_ACCESS + data.getParentPath(), data));
-			// admin access can be added to a data object once the object exists AND the admin has access to the collection
-			// in which the object resides (the second precondition is implicitly fulfilled)
-			scheduler.addBlockedTask(new AddAdminAccessToDataObjectTask(sourceAdmin, false, data.getPath(), data));
-			// AVUs can be added to a data object once the rodsadmin has sufficient access to that object
-			scheduler.addBlockedTask(new AddDataObjectAvusTask(sourceAdmin, false, Task.ADMIN_HAS_ACCESS + data.getPath(), data));
-			// Log data object done once AVUs have been added to the object
-			scheduler.addBlockedTask(new LogDataObjectDoneTask(sourceAdmin, false, Task.AVU_ADDED + data.getPath(), data));
-
-		}
-		if (ctx.sourceObject.isCollection()) {
-			// unblock transfers for data objects that reside directly underneath the source collection 
-			scheduler.unblock(Task.ADMIN_HAS_ACCESS + ctx.sourceObject.getPath());
-			// unblock transfers for subcollections that reside directly underneath the source collection
-			scheduler.unblock(ctx.sourceObject.getPath());
-		} else {
-			// unblock transfer of the data object
-			scheduler.unblock(Task.ADMIN_HAS_ACCESS + ctx.sourceObject.getParentPath());
+			
+			// collections that unblock the largest subtree will be scheduled first
+			int[] subtreeSizes = subtreeSizes(ids, collList, excludedCollections, dataList);
+			for (Collection coll : collList) {
+				producer.scheduleCollection(coll, subtreeSizes[ids.collection(coll.getPath())], false);
+			}
+			// for skipped collections, schedule tasks so that underlying objects can be unblocked
+			for (Collection coll : excludedCollections) {
+				producer.scheduleCollection(coll, subtreeSizes[ids.collection(coll.getPath())], true);
+			}
+			for (DataObject data : dataList) {
+				producer.scheduleDataObject(data);
+			}
+			producer.flush();
+			producer.logPlanning();
+			Log.debug("Task graph holds " + ids.size() + " objects, heap in use is " + heapInUse() + " MB");
+			logQueryStatistics();
 		}
 		
 		/* Add admin access to source and destination recursively, this fulfills the initial preconditions
@@ -266,20 +229,65 @@ public class PumpMain {
 			closeConnectionsAndExit(9);
 		}
 		
-		// close current connections, we're done with preparations
-		source.rcDisconnect();
-		dest.rcDisconnect();
-		
 		// open a log to record transfer results
-		ctx.log = new LogFile(ctx.logFile);
-
+		ctx.log = new LogFile(ctx.logFile, ctx.logFlushMillis, ctx.logFlushRecords, ctx.logSync);
+		ctx.avuCache = new AvuCache("Source", AvuCache.DEFAULT_MAX_ENTRIES);
+		ctx.destAvuCache = new AvuCache("Destination", AvuCache.DEFAULT_MAX_ENTRIES);
+		if (ctx.preScan) {
+			ctx.destCache = new DestinationCache(DestinationCache.DEFAULT_MAX_ENTRIES);
+		}
+		
+		if (ctx.sourceObject.isCollection()) {
+			// unblock transfers for data objects that reside directly underneath the source collection 
+			scheduler.unblock(Precondition.ADMIN_HAS_ACCESS, rootId);
+			// unblock transfers for subcollections that reside directly underneath the source collection
+			scheduler.unblock(Precondition.EXISTS, rootId);
+		} else {
+			// unblock transfer of the data object
+			scheduler.unblock(Precondition.ADMIN_HAS_ACCESS, rootId);
+		}
+		
 		// execute transfers
-		Log.info("About to transfer " + dataList.size() + " data objects and create " + collList.size() + " subcollections");
 		long startCopy = timeStamp();
+		Thread producerThread = null;
+		if (streaming) {
+			Log.info("About to transfer objects while enumerating the source collection");
+			scheduler.feedingStarted();
+			producerThread = new Thread(producer, "producer");
+			producerThread.start();
+		} else {
+			// close current connections, we're done with preparations
+			source.rcDisconnect();
+			dest.rcDisconnect();
+			if (ctx.audit) {
+				Log.info("About to audit a sample of " + ctx.samplePercent + "% of " + dataList.size() + " data objects");
+			} else {
+				Log.info("About to transfer " + dataList.size() + " data objects and create " + collList.size() + " subcollections");
+			}
+		}
 		scheduler.runTasks();
 		long elapsed = timeStamp() - startCopy;
 		Log.info("Total elapsed time " + elapsed + " seconds");
+		if (producerThread != null) {
+			try {
+				producerThread.join();
+			} catch (InterruptedException e) { }
+			Log.debug("Task graph held " + ids.size() + " objects, heap in use is " + heapInUse() + " MB");
+			logQueryStatistics();
+		}
 		
+		if (ctx.audit) {
+			ChecksumAuditTask.logStatistics();
+		}
+		if (ctx.destCache != null) {
+			ctx.destCache.logStatistics();
+		}
+		ctx.avuCache.logStatistics();
+		ctx.destAvuCache.logStatistics();
+		int abandoned = scheduler.countAbandonedTasks();
+		if (abandoned > 0) {
+			Log.warning("Due to transfer errors, " + abandoned + " tasks have been abandoned.");
+		}
 		int blocked = scheduler.countBlockedObjects();
 		if (blocked > 0) {
 			Log.warning("Due to transfer errors at parent, there are remaing tasks for " + blocked + " objects.");
@@ -292,6 +300,35 @@ public class PumpMain {
 	
 		
 	
+	/**
+	 * Registers all collections and counts, for each collection, the number of objects in its subtree.
+	 * @return subtree sizes indexed by collection id
+	 */
+	private static int[] subtreeSizes(ObjectIds ids, List<Collection> collList, List<Collection> excludedCollections, List<DataObject> dataList) {
+		List<Collection> colls = new ArrayList<Collection>(collList);
+		colls.addAll(excludedCollections);
+		for (Collection coll : colls) {
+			ids.collection(coll.getPath());
+		}
+		int[] sizes = new int[ids.size()];
+		// count direct members
+		for (DataObject data : dataList) {
+			int parentId = ids.collection(data.getParentPath());
+			if (parentId < sizes.length) {
+				sizes[parentId]++;
+			}
+		}
+		// a subcollection has a longer path than its parent, add subtree sizes bottom-up
+		colls.sort((a, b) -> b.getPath().length() - a.getPath().length());
+		for (Collection coll : colls) {
+			int parentId = ids.collection(coll.getParentPath());
+			if (parentId < sizes.length) {
+				sizes[parentId] += sizes[ids.collection(coll.getPath())] + 1;
+			}
+		}
+		return sizes;
+	}
+	
 	private static PumpContext processCommandLineArgs(String[] args) {
 		PumpContext ctx = new PumpContext();
 		// analyze command line arguments
@@ -312,6 +349,7 @@ public class PumpMain {
 			String[] classFilter = { "nl.tsmeele.ipump" };
 			Log.setDebugOutputFilter(classFilter);
 		}
+		IrodsQuery.setPageSize(ctx.pageSize);
 		// ensure that we got sufficient command line arguments
 		if (ctx.sourceObjPath == null || ctx.destinationCollPath == null) {
 			Log.error("Missing commandline argument for source and/or destination");
@@ -375,5 +413,14 @@ public class PumpMain {
 	private static long timeStamp() {
 		return Instant.now().getEpochSecond();
 	}
+	
+	private static void logQueryStatistics() {
+		Log.debug("Catalog queries took " + IrodsQuery.roundTrips() + " round trips and " + IrodsQuery.queryMillis() + " ms");
+	}
+	
+	private static long heapInUse() {
+		Runtime runtime = Runtime.getRuntime();
+		return (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+	}
 
 }
@@ -0,0 +1,294 @@
+package nl.tsmeele.ipump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.api.AccessType;
+import nl.tsmeele.myrods.api.DataObjInp;
+import nl.tsmeele.myrods.api.ObjType;
+import nl.tsmeele.myrods.api.RodsObjStat;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.IrodsUser;
+import nl.tsmeele.myrods.high.PosixFileFactory;
+import nl.tsmeele.myrods.high.Replica;
+
+/**
+ * PumpSmallObjectsTask transfers a batch of small data objects that reside in the same collection,
+ * back to back over the session pair of a single runner.
+ *
+ * The transfer is pipelined: while an object is written to the destination, the next object
+ * is opened and read from the source on a second thread. Checks that PumpDataObjectTask performs
+ * for each object are done once per batch (access to the destination collection) or only when
+ * needed (the destination object is only examined if it cannot be created).
+ * As each object is read in full before it is written, the number of bytes written
+ * confirms its size at destination.
+ *
+ * With a prescan, objects that already exist at destination are skipped without a request per object
+ * to source or destination.
+ *
+ * A failed object is abandoned on its own, the batch continues with the next object.
+ * A failed connection abandons the objects that remain.
+ *
+ * @author ton
+ *
+ */
+public class PumpSmallObjectsTask extends Task {
+	private List<DataObject> dataObjs = new ArrayList<DataObject>();
+	private List<Integer> objIds = new ArrayList<Integer>();
+	private long totalSize = 0;
+	// objects before this index have been transferred or abandoned
+	private int processed = 0;
+	// checksums of the source objects, if checksums are verified
+	private Map<String, String> sourceChecksums = null;
+
+	public PumpSmallObjectsTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId) {
+		super(clientUser, runAsAgent, precondition, objId);
+	}
+
+	public void add(DataObject dataObj, int objId) {
+		dataObjs.add(dataObj);
+		objIds.add(objId);
+		totalSize += dataObj.dataSize;
+	}
+
+	public int size() {
+		return dataObjs.size();
+	}
+
+	@Override
+	public Boolean call() throws Exception {
+		String destCollPath = context.destCollectionPath(dataObjs.get(0));
+		Log.debug("TASK TRANSFER " + dataObjs.size() + " SMALL DATA OBJECTS\nFROM=" + dataObjs.get(0).collName + "\n  TO=" + destCollPath);
+
+		// all objects of the batch reside in the same collection, access is checked once
+		if (runAsAgent && !context.dest.checkAccess(clientUser.name, context.ctx.destLocalZone, ObjType.COLLECTION,
+				destCollPath, AccessType.WRITE)) {
+			Log.debug("INSUFF ACCESS: " + clientUser.name + "#" + context.ctx.destLocalZone + " path=" + destCollPath);
+			Log.debug("Resubmitting task PumpSmallObjects to run as rodsadmin for collection " + dataObjs.get(0).collName);
+			rescheduleTaskAsAdmin();
+			return null;
+		}
+
+		// with a prescan, objects that exist at destination with the same size are done without a transfer
+		if (context.ctx.destCache != null) {
+			skipListed(destCollPath);
+			if (processed == dataObjs.size()) {
+				return null;
+			}
+		}
+
+		if (context.ctx.checksum != null) {
+			sourceChecksums = IrodsQuery.getChecksums(context.source, dataObjs.get(0).collName, null);
+		}
+
+		// the source session is used by the prefetch thread only, the destination session by this thread only
+		ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+		DataObject first = dataObjs.get(processed);
+		Future<byte[]> next = prefetcher.submit(() -> readSource(first));
+		try {
+			while (processed < dataObjs.size()) {
+				DataObject dataObj = dataObjs.get(processed);
+				int id = objIds.get(processed);
+				byte[] content = null;
+				try {
+					content = next.get();
+				} catch (ExecutionException e) {
+					next = null;
+					String msg = "Transfer failed with exception: " + e.getCause().getMessage();
+					context.ctx.log.logError(dataObj.getPath(), msg);
+					Log.info(dataObj.getPath() + ": " + msg);
+					if (!context.source.error) {
+						// not an iRODS error, the source session has become unreliable
+						context.disconnect();
+						return false;
+					}
+				}
+				if (processed + 1 < dataObjs.size()) {
+					DataObject following = dataObjs.get(processed + 1);
+					next = prefetcher.submit(() -> readSource(following));
+				} else {
+					next = null;
+				}
+				if (content != null && writeDestination(dataObj, content)) {
+					stepDone(Precondition.EXISTS, id, dataObj.getPath());
+				} else {
+					context.scheduler.abandonObject(id);
+				}
+				processed++;
+			}
+		} catch (IOException e) {
+			String msg = "Transfer failed with exception: " + e.getMessage();
+			context.ctx.log.logError(dataObjs.get(processed).getPath(), msg);
+			Log.info(dataObjs.get(processed).getPath() + ": " + msg);
+			awaitPrefetch(next);
+			context.disconnect();
+			return false;
+		} finally {
+			prefetcher.shutdown();
+		}
+		return null;
+	}
+
+	private void skipListed(String destCollPath) throws IOException {
+		Map<String, Long> sizes;
+		try {
+			sizes = context.ctx.destCache.sizes(context.dest, destCollPath);
+		} catch (IOException e) {
+			Log.debug(e.getMessage() + ", checking destination objects instead");
+			return;
+		}
+		// objects that are done are moved to the front of the batch
+		for (int i = processed; i < dataObjs.size(); i++) {
+			DataObject dataObj = dataObjs.get(i);
+			Long size = sizes.get(dataObj.dataName);
+			if (size != null && size == dataObj.dataSize) {
+				Collections.swap(dataObjs, i, processed);
+				Collections.swap(objIds, i, processed);
+				Log.info("Copy exists and matches source object: " + dataObj.getPath());
+				stepDone(Precondition.EXISTS, objIds.get(processed), dataObj.getPath());
+				processed++;
+			}
+		}
+	}
+
+	private void awaitPrefetch(Future<byte[]> prefetch) {
+		if (prefetch == null) return;
+		try {
+			prefetch.get();
+		} catch (InterruptedException | ExecutionException e) {
+			// the prefetched content is discarded anyway
+		}
+	}
+
+	private byte[] readSource(DataObject dataObj) throws IOException {
+		Replica sourceReplica = PosixFileFactory.createReplica(context.source, dataObj.getPath());
+		ByteArrayOutputStream content = new ByteArrayOutputStream((int) dataObj.dataSize);
+		sourceReplica.openRead();
+		try {
+			byte[] buf = sourceReplica.read((int) dataObj.dataSize + 1);
+			while (buf.length > 0) {
+				content.write(buf);
+				buf = sourceReplica.read((int) dataObj.dataSize + 1);
+			}
+		} finally {
+			sourceReplica.close();
+		}
+		return content.toByteArray();
+	}
+
+	/**
+	 * Writes the content of a data object to a new object at destination.
+	 * @return true if the destination object holds the content of the source object
+	 * @throws IOException if the destination session has become unreliable
+	 */
+	private boolean writeDestination(DataObject dataObj, byte[] content) throws IOException {
+		String destPath = context.destCollectionPath(dataObj) + "/" + dataObj.dataName;
+		if (content.length != dataObj.dataSize) {
+			String msg = "source size is " + content.length + " while catalog size is " + dataObj.dataSize + " (" + dataObj.getPath() + ")";
+			Log.error("Source object size mismatch: " + msg);
+			context.ctx.log.logError(dataObj.getPath(), msg);
+			return false;
+		}
+		Log.info("...copying from " + dataObj.getPath() + " to " + destPath);
+		Replica destReplica = PosixFileFactory.createReplica(context.dest, destPath);
+		try {
+			destReplica.openCreate();
+		} catch (IOException e) {
+			if (context.dest.error && context.dest.intInfo == OBJECT_EXISTS) {
+				return existingMatches(dataObj, destPath);
+			}
+			throw e;
+		}
+		try {
+			if (content.length > 0) {
+				destReplica.write(content);
+			}
+			destReplica.close();
+		} catch (IOException e) {
+			removePartialObject(destPath);
+			throw e;
+		}
+		context.scheduler.bytesTransferred(content.length);
+		if (sourceChecksums != null) {
+			// the content is in memory, computing its digest does not read any data again
+			String sourceChecksum = sourceChecksums.get(dataObj.dataName);
+			MessageDigest digest = Checksum.digestFor(sourceChecksum, context.ctx.checksum);
+			String computed = null;
+			if (digest != null) {
+				digest.update(content);
+				computed = Checksum.format(digest);
+			}
+			if (!context.verifyChecksum(dataObj.getPath(), destPath, sourceChecksum, computed)) {
+				removePartialObject(destPath);
+				return false;
+			}
+		}
+		Log.info("Copied and OK: " + dataObj.getPath());
+		return true;
+	}
+
+	/**
+	 * Compares the size of an existing destination object with the source object.
+	 */
+	private boolean existingMatches(DataObject dataObj, String destPath) throws IOException {
+		Log.info("Skipping transfer as destination object already exists: '" + destPath + "'");
+		RodsObjStat objStat = context.dest.rcObjStat(destPath, ObjType.DATAOBJECT);
+		if (context.dest.error) {
+			String msg = "iRODS error: " + context.dest.intInfo + " (at destination)";
+			context.ctx.log.logError(dataObj.getPath(), msg);
+			Log.error(msg + " while asserting destination object size for '" + destPath + "'" );
+			return false;
+		}
+		if (objStat.objSize != dataObj.dataSize) {
+			String msg = "destination size is " + objStat.objSize + " while source size is " + dataObj.dataSize + " (" + dataObj.getPath() + ")";
+			Log.error("Existing object copy size mismatch: " + msg);
+			context.ctx.log.logError(dataObj.getPath(), msg);
+			return false;
+		}
+		Log.info("Copy exists and matches source object: " + dataObj.getPath());
+		return true;
+	}
+
+	private void removePartialObject(String destPath) {
+		DataObjInp dataObjInp = new DataObjInp(destPath, null);
+		try {
+			context.dest.rcDataObjUnlink(dataObjInp);
+			if (context.dest.error) {
+				Log.debug("Unable to unlink '" + destPath + "' iRODS error = " + context.dest.intInfo);
+			} else {
+				Log.info("Cleaned up partial replica copy of data object at destination");
+			}
+		} catch (IOException e) {
+			// the caller disconnects the unreliable connection
+		}
+	}
+
+	@Override
+	public int[] objectIds() {
+		int[] remaining = new int[objIds.size() - processed];
+		for (int i = 0; i < remaining.length; i++) {
+			remaining[i] = objIds.get(processed + i);
+		}
+		return remaining;
+	}
+
+	@Override
+	public long priority() {
+		return TRANSFER_PRIORITY + totalSize;
+	}
+
+	public String toString() {
+		return super.toString() + " objs = " + dataObjs.size() + " in " + (dataObjs.isEmpty() ? "" : dataObjs.get(0).collName);
+	}
+
+}
@@ -11,8 +11,8 @@ import nl.tsmeele.myrods.high.IrodsUser;
 public class RepublishCollectionTask extends Task {
 	private Collection coll;
 
-	public RepublishCollectionTask(IrodsUser clientUser, boolean runAsAgent, String precondition, Collection coll) {
-		super(clientUser, runAsAgent, precondition);
+	public RepublishCollectionTask(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId, Collection coll) {
+		super(clientUser, runAsAgent, precondition, objId);
 		this.coll = coll;
 	}
 
@@ -22,7 +22,7 @@ public class RepublishCollectionTask extends Task {
 
 		// execute this task only for vault collections, otherwise flag as complete
 		if (!isVaultSpace(coll.getPath())) {
-			context.scheduler.unblock(Task.REPUBLISHED + coll.getPath());
+			stepDone(Precondition.REPUBLISHED, coll.getPath());
 			return null;
 		}
 		
@@ -36,7 +36,8 @@ public class RepublishCollectionTask extends Task {
 		
 		// find out if this collection is a (de)published data package
 		String destPath = context.destCollectionPath(coll);
-		List<AVU> avus = context.dest.getAvus("-C", destPath, true);
+		// the destination holds the source AVUs as AddCollectionAvusTask has transformed them
+		List<AVU> avus = AddCollectionAvusTask.transformVaultMetadata(context.ctx.avuCache.collectionAvus(context.source, coll));
 		if (avus.stream().filter(a->!(a.name.equals("org_vault_status") && a.value.equals("PUBLISHED")) ).collect(Collectors.toList()).isEmpty()) {
 			// published data package, signal in logfile that rule to republish must be executed
 			// (to fix any zone/url refs in metadata, recreate landingpage, and update DOI at Datacite)
@@ -50,20 +51,8 @@ public class RepublishCollectionTask extends Task {
 			context.ctx.log.logReDepublish(destPath);
 		}
 		
-		context.scheduler.unblock(Task.REPUBLISHED + coll.getPath());
+		stepDone(Precondition.REPUBLISHED, coll.getPath());
 		return null;
 	}
 	
-
-	
-	
-
-	private static boolean isVaultSpace(String path) {
-		String[] components = path.split("/");
-		if (components.length >= 3 && components[2].startsWith("vault-")) {
-			return true;
-		}
-		return false;
-	}
-	
 }
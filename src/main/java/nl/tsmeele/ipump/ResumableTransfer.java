@@ -0,0 +1,303 @@
+package nl.tsmeele.ipump;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.DataTransfer;
+import nl.tsmeele.myrods.high.Replica;
+
+/**
+ * ResumableTransfer copies a replica, or the remainder of a replica from an offset onwards,
+ * using one or more parallel streams.
+ *
+ * The transfer keeps the destination resumable: whenever it is interrupted, all bytes below
+ * the start of the round that was in progress have been written. Data is copied in rounds
+ * of ROUND_BYTES, aligned on multiples of ROUND_BYTES. The streams share the bytes of a round,
+ * and a round starts once the previous round has been written completely. The last chunk of
+ * the replica is written after all other bytes, hence a destination replica that has reached
+ * its full size is complete.
+ *
+ * An interrupted transfer can be continued from resumeOffset(destination size).
+ *
+ * @author ton
+ *
+ */
+public class ResumableTransfer extends DataTransfer {
+	public static final long ROUND_BYTES = 256L * 1024 * 1024;
+	// size of the block in front of the resume offset that is compared between source and destination
+	private static final int TRAILING_BLOCK = 1024 * 1024;
+	private Replica sourceReplica, destReplica;
+	private long size;
+	private long offset;
+	private int threads = 1;
+	// digest over the transferred bytes, computed when the replica is copied by a single stream from the start
+	private MessageDigest digest = null;
+	private boolean digestComplete = false;
+	// start of the round in progress, all bytes below have been written
+	private volatile long completed;
+
+	/**
+	 * @param source	replica to copy
+	 * @param dest		new replica, or the partial copy of an interrupted transfer
+	 * @param size		size of the source replica
+	 * @param offset	offset to continue an interrupted transfer from, or 0 for a new replica
+	 */
+	public ResumableTransfer(Replica source, Replica dest, long size, long offset) {
+		super(source, dest);
+		this.sourceReplica = source;
+		this.destReplica = dest;
+		this.size = size;
+		this.offset = offset;
+		this.completed = offset;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Requests a digest over the transferred bytes. The bytes are digested as they pass,
+	 * which requires them to pass in order: the digest is only computed for a transfer of 
+	 * the complete replica by a single stream.
+	 */
+	public void setDigest(MessageDigest digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * @return digest over all bytes of the replica, or null if it could not be computed
+	 */
+	public MessageDigest digest() {
+		return digestComplete ? digest : null;
+	}
+
+	/**
+	 * @return max number of streams worth their setup for the bytes that remain to be copied
+	 */
+	public int usefulStreams() {
+		long remaining = size - offset;
+		return (int) Math.min(Integer.MAX_VALUE, 1 + remaining / (2L * chunkSize));
+	}
+
+	/**
+	 * @return number of bytes at the start of the destination that are known to have been written
+	 */
+	public long completed() {
+		return completed;
+	}
+
+	/**
+	 * @param destSize	size of an interrupted destination replica
+	 * @return offset from which an interrupted transfer can be continued
+	 */
+	public static long resumeOffset(long destSize) {
+		if (destSize <= 0) return 0;
+		return (destSize - 1) / ROUND_BYTES * ROUND_BYTES;
+	}
+
+	/**
+	 * @return start of the last chunk, which is written once all other bytes are in place
+	 */
+	static long tailStart(long size, long offset, long chunkSize) {
+		return size - Math.min(chunkSize, size - offset);
+	}
+
+	/**
+	 * @param position	start of a round
+	 * @param end		start of the last chunk
+	 * @return end of the round, the next multiple of ROUND_BYTES unless the last chunk comes first
+	 */
+	static long roundEnd(long position, long end) {
+		return Math.min((position / ROUND_BYTES + 1) * ROUND_BYTES, end);
+	}
+
+	/**
+	 * Verifies that an interrupted destination replica holds the same bytes as the source in front
+	 * of the resume offset. Ranges are written in full, hence the trailing block suffices to detect
+	 * a destination that is not an interrupted copy of the source.
+	 * @return true if the transfer can be continued from the offset
+	 */
+	public static boolean verifyPrefix(Replica source, Replica dest, long offset) throws IOException {
+		int block = (int) Math.min(TRAILING_BLOCK, offset);
+		byte[] destBlock = readBlock(dest, offset - block, block);
+		return destBlock != null && Arrays.equals(readBlock(source, offset - block, block), destBlock);
+	}
+
+	private static byte[] readBlock(Replica replica, long start, int count) throws IOException {
+		byte[] block = new byte[count];
+		int filled = 0;
+		replica.openRead();
+		try {
+			replica.lseek(start);
+			while (filled < count) {
+				byte[] buf = replica.read(count - filled);
+				if (buf.length == 0) break;
+				System.arraycopy(buf, 0, block, filled, buf.length);
+				filled += buf.length;
+			}
+		} finally {
+			replica.close();
+		}
+		return filled == count ? block : null;
+	}
+
+	@Override
+	public void transfer() throws IOException {
+		threadsActuallyUsed = 1;
+		sourceReplica.openRead();
+		if (offset > 0) {
+			// keep the bytes that have already been written
+			destReplica.openWrite();
+		} else {
+			destReplica.openCreate();
+		}
+		IOException error = null;
+		try {
+			// parallel streams need a replica token
+			copyRounds(Math.max(1, Math.min(Math.min(threads, usefulStreams()), maxThreads())));
+		} catch (IOException e) {
+			error = e;
+		}
+		try {
+			sourceReplica.close();
+		} catch (IOException e) { }
+		try {
+			destReplica.close();
+		} catch (IOException e) {
+			if (error == null) error = e;
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private int maxThreads() {
+		int max = Integer.MAX_VALUE;
+		if (sourceReplica.maxThreads() > 0) max = sourceReplica.maxThreads();
+		if (destReplica.maxThreads() > 0) max = Math.min(max, destReplica.maxThreads());
+		return max;
+	}
+
+	private void copyRounds(int streams) throws IOException {
+		threadsActuallyUsed = streams;
+		ExecutorService pool = streams > 1 ? Executors.newFixedThreadPool(streams - 1) : null;
+		List<Replica[]> channels = new ArrayList<Replica[]>();
+		try {
+			// the primary channel is channel 0, the other channels use sessions of the connection pool
+			channels.add(new Replica[] {sourceReplica, destReplica});
+			for (int i = 1; i < streams; i++) {
+				Replica[] channel = new Replica[2];
+				channels.add(channel);
+				channel[0] = allocate(sourceReplica);
+				channel[1] = allocate(destReplica);
+				channel[0].openRead();
+				channel[1].openWrite();
+			}
+			// the last chunk is written once all other bytes are in place
+			MessageDigest inline = streams == 1 && offset == 0 ? digest : null;
+			long end = tailStart(size, offset, chunkSize);
+			long tail = size - end;
+			long position = offset;
+			while (position < end) {
+				long roundEnd = roundEnd(position, end);
+				long share = (roundEnd - position + streams - 1) / streams;
+				List<Future<Long>> parts = new ArrayList<Future<Long>>();
+				for (int i = 1; i < streams; i++) {
+					Replica[] channel = channels.get(i);
+					long start = position + i * share;
+					long count = Math.min(share, roundEnd - start);
+					if (count <= 0) break;
+					parts.add(pool.submit(() -> copy(channel[0], channel[1], start, count, null)));
+				}
+				IOException error = null;
+				try {
+					copy(sourceReplica, destReplica, position, Math.min(share, roundEnd - position), inline);
+				} catch (IOException e) {
+					error = e;
+				}
+				// the channels are in use until all parts have ended
+				for (Future<Long> part : parts) {
+					try {
+						part.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (error == null) {
+							error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+						}
+					} catch (InterruptedException e) {
+						if (error == null) {
+							error = new IOException("Transfer interrupted");
+						}
+					}
+				}
+				if (error != null) {
+					throw error;
+				}
+				position = roundEnd;
+				completed = position;
+			}
+			copy(sourceReplica, destReplica, end, tail, inline);
+			completed = size;
+			digestComplete = inline != null;
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			for (int i = 1; i < channels.size(); i++) {
+				release(channels.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Copies a range of bytes.
+	 * @param digest	digest to update with the copied bytes, or null
+	 * @return number of bytes copied
+	 */
+	private long copy(Replica in, Replica out, long start, long count, MessageDigest digest) throws IOException {
+		in.lseek(start);
+		out.lseek(start);
+		long remaining = count;
+		while (remaining > 0) {
+			byte[] buf = in.read((int) Math.min(chunkSize, remaining));
+			if (buf.length == 0) {
+				throw new IOException("Unexpected end of source replica at offset " + (start + count - remaining));
+			}
+			out.write(buf);
+			if (digest != null) {
+				digest.update(buf);
+			}
+			remaining -= buf.length;
+		}
+		return count;
+	}
+
+	private Replica allocate(Replica replica) throws IOException {
+		Replica handle = (Replica) replica.cloneProperties();
+		handle.session = replica.session.irodsPool.allocate();
+		return handle;
+	}
+
+	private void release(Replica[] channel) {
+		for (Replica handle : channel) {
+			if (handle == null) continue;
+			try {
+				if (handle.isOpenRead() || handle.isOpenWrite()) {
+					handle.close();
+				}
+			} catch (IOException e) {
+				Log.debug("Unable to close transfer channel: " + e.getMessage());
+			}
+			handle.session.irodsPool.free(handle.session);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package nl.tsmeele.ipump;
+
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RunQueue holds the runnable tasks of a single IrodsUser, along with the 
+ * number of TaskRunners that currently process this queue, and the number of
+ * these runners that are busy executing a task.
+ * 
+ * Tasks are polled in order of descending Task.priority(). Collection tasks come 
+ * first, largest subtree first, since they unblock the work below them. Data transfers 
+ * follow, prioritized by size, so that runners pick the largest transfer first (LPT 
+ * scheduling). A runner that completes a transfer takes the largest remaining one, 
+ * which keeps a big object that is left until last from dominating the total 
+ * elapsed time. The steps that complete a transferred data object (access, AVUs, log)
+ * come before new transfers, so that the object releases its place in the window
+ * while other transfers are queued. Bookkeeping tasks come last.
+ * 
+ * @author ton
+ *
+ */
+public class RunQueue {
+	private static final int INITIAL_CAPACITY = 64;
+	private Queue<Task> tasks = new PriorityBlockingQueue<Task>(INITIAL_CAPACITY, 
+			Comparator.comparingLong(Task::priority).reversed());
+	// keep count ourselves, so that the scheduler can read the size without locking the queue
+	private AtomicInteger size = new AtomicInteger(0);
+	private AtomicInteger runners = new AtomicInteger(0);
+	private AtomicInteger busy = new AtomicInteger(0);
+	
+	public void add(Task task) {
+		tasks.add(task);
+		size.incrementAndGet();
+	}
+	
+	public Task poll() {
+		Task task = tasks.poll();
+		if (task != null) {
+			size.decrementAndGet();
+			// the runner that polls the task is busy until the task is done
+			busy.incrementAndGet();
+		}
+		return task;
+	}
+	
+	public boolean isEmpty() {
+		return tasks.isEmpty();
+	}
+	
+	public int size() {
+		return size.get();
+	}
+	
+	public int runners() {
+		return runners.get();
+	}
+	
+	/**
+	 * @return number of runners that are not busy executing a task, they will poll the queue
+	 */
+	public int idleRunners() {
+		return runners.get() - busy.get();
+	}
+	
+	public void taskDone() {
+		busy.decrementAndGet();
+	}
+	
+	public void runnerStarted() {
+		runners.incrementAndGet();
+	}
+	
+	public void runnerDone() {
+		runners.decrementAndGet();
+	}
+	
+	public String toString() {
+		return tasks.toString();
+	}
+	
+}
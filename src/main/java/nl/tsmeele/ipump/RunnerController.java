@@ -0,0 +1,113 @@
+package nl.tsmeele.ipump;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import nl.tsmeele.log.Log;
+
+/**
+ * RunnerController decides how many TaskRunners may be active at the same time.
+ * 
+ * In fixed mode the limit is simply the configured maximum.
+ * In adaptive mode the limit is adjusted in AIMD style at the end of each interval, 
+ * based on the tasks/sec, bytes/sec and error rate observed during that interval:
+ * - if the error rate exceeds a threshold, the limit is halved (multiplicative decrease)
+ * - if the previous increase did not improve throughput, that increase is undone
+ * - otherwise the limit is raised by one runner (additive increase)
+ * The limit always stays within 1 and the configured maximum.
+ * 
+ * @author ton
+ *
+ */
+public class RunnerController {
+	public static final long INTERVAL_MILLIS = 10000L;
+	private static final double MAX_ERROR_RATE = 0.05;
+	// throughput must improve by at least this fraction to keep an added runner
+	private static final double MIN_GAIN = 0.05;
+	
+	private final int maxRunners;
+	private final boolean adaptive;
+	private volatile int limit;
+	
+	private LongAdder tasks = new LongAdder();
+	private LongAdder errors = new LongAdder();
+	private LongAdder bytes = new LongAdder();
+	private long lastTick = System.currentTimeMillis();
+	private double lastTasksRate = 0.0;
+	private double lastBytesRate = 0.0;
+	private boolean lastWasIncrease = false;
+	
+	public RunnerController(int maxRunners, boolean adaptive) {
+		this.maxRunners = Math.max(1, maxRunners);
+		this.adaptive = adaptive;
+		// adaptive mode starts conservatively and works its way up
+		this.limit = adaptive ? Math.min(2, this.maxRunners) : this.maxRunners;
+	}
+	
+	public int limit() {
+		return limit;
+	}
+	
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+	
+	public void taskDone(boolean success) {
+		tasks.increment();
+		if (!success) {
+			errors.increment();
+		}
+	}
+	
+	public void bytesTransferred(long count) {
+		bytes.add(count);
+	}
+	
+	/**
+	 * @return milliseconds until the current interval ends
+	 */
+	public long millisToNextTick() {
+		return Math.max(0L, lastTick + INTERVAL_MILLIS - System.currentTimeMillis());
+	}
+	
+	/**
+	 * Adjusts the limit if the current interval has ended.
+	 * @return true if the limit has been changed
+	 */
+	public synchronized boolean tick() {
+		long now = System.currentTimeMillis();
+		if (!adaptive || now - lastTick < INTERVAL_MILLIS) {
+			return false;
+		}
+		double seconds = (now - lastTick) / 1000.0;
+		long intervalTasks = tasks.sumThenReset();
+		long intervalErrors = errors.sumThenReset();
+		double tasksRate = intervalTasks / seconds;
+		double bytesRate = bytes.sumThenReset() / seconds;
+		double errorRate = intervalTasks > 0 ? (double) intervalErrors / intervalTasks : 0.0;
+		lastTick = now;
+		
+		int oldLimit = limit;
+		if (errorRate > MAX_ERROR_RATE) {
+			limit = Math.max(1, limit / 2);
+			lastWasIncrease = false;
+		} else if (lastWasIncrease && !improved(bytesRate, lastBytesRate) && !improved(tasksRate, lastTasksRate)) {
+			limit = Math.max(1, limit - 1);
+			lastWasIncrease = false;
+		} else if (limit < maxRunners) {
+			limit++;
+			lastWasIncrease = true;
+		} else {
+			lastWasIncrease = false;
+		}
+		lastTasksRate = tasksRate;
+		lastBytesRate = bytesRate;
+		Log.debug(String.format("Runners %d -> %d (%.1f tasks/s, %.0f bytes/s, error rate %.3f)", 
+				oldLimit, limit, tasksRate, bytesRate, errorRate));
+		return limit != oldLimit;
+	}
+	
+	private static boolean improved(double rate, double lastRate) {
+		return rate > lastRate * (1.0 + MIN_GAIN);
+	}
+	
+}
@@ -0,0 +1,331 @@
+package nl.tsmeele.ipump;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.Collection;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.Hirods;
+import nl.tsmeele.myrods.high.IrodsObject;
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * Snapshot persists the enumerated listing of a source collection to a local binary file,
+ * so that a resumed run does not need to enumerate the source collection again.
+ *
+ * The file holds a table of object owners, followed by the collections and data objects
+ * in order of path. Each path is stored as the length of the prefix it shares with the
+ * previous path plus the remaining bytes. Numbers are stored as variable length integers.
+ * The file is memory mapped while it is read.
+ *
+ * A snapshot records the time it was taken. Upon refresh, only collections that have been
+ * modified since are listed again, as well as data objects that have been modified since.
+ *
+ * @author ton
+ *
+ */
+public class Snapshot {
+	private static final String MAGIC = "IPUMPSNAP1";
+	private static final byte COLLECTION = 'C';
+	private static final byte DATA_OBJECT = 'D';
+	// the clocks of source server and this host may differ, we look back a bit further
+	private static final long CLOCK_MARGIN_SECONDS = 300;
+	// map the file in windows, a record never exceeds a few KB
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+	private static final int MAX_RECORD = 64 * 1024;
+
+	public long timestamp;
+	public String sourceRoot;
+	public List<Collection> collections;
+	public List<DataObject> dataObjects;
+
+	public Snapshot(long timestamp, String sourceRoot, List<Collection> collections, List<DataObject> dataObjects) {
+		this.timestamp = timestamp;
+		this.sourceRoot = sourceRoot;
+		this.collections = collections;
+		this.dataObjects = dataObjects;
+	}
+
+	/**
+	 * Writes the snapshot to a file. The file is replaced only once it has been written completely.
+	 */
+	public void write(String file) throws IOException {
+		List<IrodsObject> objects = new ArrayList<IrodsObject>(collections.size() + dataObjects.size());
+		objects.addAll(collections);
+		objects.addAll(dataObjects);
+		objects.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+
+		HashMap<String, Integer> ownerIndex = new HashMap<String, Integer>();
+		List<IrodsUser> owners = new ArrayList<IrodsUser>();
+		for (IrodsObject obj : objects) {
+			if (ownerIndex.putIfAbsent(obj.owner.nameAndZone(), owners.size()) == null) {
+				owners.add(obj.owner);
+			}
+		}
+
+		Path target = Paths.get(file);
+		Path temp = Paths.get(file + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile())))) {
+			writeString(out, MAGIC);
+			out.writeLong(timestamp);
+			writeString(out, sourceRoot);
+			writeVarLong(out, owners.size());
+			for (IrodsUser owner : owners) {
+				writeString(out, owner.name);
+				writeString(out, owner.zone);
+			}
+			writeVarLong(out, objects.size());
+			byte[] previous = new byte[0];
+			for (IrodsObject obj : objects) {
+				byte[] path = obj.getPath().getBytes(StandardCharsets.UTF_8);
+				int shared = 0;
+				int max = Math.min(path.length, previous.length);
+				while (shared < max && path[shared] == previous[shared]) {
+					shared++;
+				}
+				boolean isData = obj.isDataObject();
+				out.writeByte(isData ? DATA_OBJECT : COLLECTION);
+				writeVarLong(out, shared);
+				writeVarLong(out, path.length - shared);
+				out.write(path, shared, path.length - shared);
+				writeVarLong(out, ownerIndex.get(obj.owner.nameAndZone()));
+				if (isData) {
+					writeVarLong(out, ((DataObject) obj).dataSize);
+				}
+				previous = path;
+			}
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Log.debug("Snapshot of " + objects.size() + " objects written to " + file + " (" + Files.size(target) + " bytes)");
+	}
+
+	/**
+	 * Reads a snapshot from file.
+	 * @return snapshot, or null if the file does not exist or is not a snapshot
+	 */
+	public static Snapshot read(String file) throws IOException {
+		Path path = Paths.get(file);
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			Reader in = new Reader(channel);
+			if (!MAGIC.equals(in.readString())) {
+				Log.error("File '" + file + "' is not a snapshot");
+				return null;
+			}
+			in.ensure();
+			long timestamp = in.buffer.getLong();
+			String sourceRoot = in.readString();
+			int nOwners = (int) in.readVarLong();
+			IrodsUser[] owners = new IrodsUser[nOwners];
+			for (int i = 0; i < nOwners; i++) {
+				owners[i] = new IrodsUser(in.readString(), in.readString());
+			}
+			long nObjects = in.readVarLong();
+			List<Collection> collections = new ArrayList<Collection>();
+			List<DataObject> dataObjects = new ArrayList<DataObject>();
+			byte[] previous = new byte[0];
+			String parent = "";
+			for (long i = 0; i < nObjects; i++) {
+				in.ensure();
+				byte type = in.buffer.get();
+				int shared = (int) in.readVarLong();
+				int suffix = (int) in.readVarLong();
+				byte[] bytes = new byte[shared + suffix];
+				System.arraycopy(previous, 0, bytes, 0, shared);
+				in.buffer.get(bytes, shared, suffix);
+				previous = bytes;
+				String objPath = new String(bytes, StandardCharsets.UTF_8);
+				IrodsUser owner = owners[(int) in.readVarLong()];
+				IrodsObject obj;
+				if (type == DATA_OBJECT) {
+					String collName = IrodsObject.parent(objPath);
+					// members of a collection are mostly stored consecutively, share the collection name
+					if (collName.equals(parent)) {
+						collName = parent;
+					}
+					parent = collName;
+					DataObject data = new DataObject(collName, IrodsObject.basename(objPath), in.readVarLong(), owner.name, owner.zone);
+					dataObjects.add(data);
+					obj = data;
+				} else {
+					Collection coll = new Collection(objPath, owner.name, owner.zone);
+					collections.add(coll);
+					obj = coll;
+				}
+				// objects of the same owner share a single IrodsUser instance
+				obj.owner = owner;
+			}
+			Log.debug("Snapshot of " + nObjects + " objects read from " + file);
+			return new Snapshot(timestamp, sourceRoot, collections, dataObjects);
+		}
+	}
+
+	/**
+	 * Brings the snapshot up to date with the source collection.
+	 * Collections that have been modified since the snapshot was taken are listed again,
+	 * this finds new and removed members. A new subcollection is listed with its whole subtree.
+	 * Data objects that have been modified since are updated.
+	 * @param source	connection to the source server
+	 * @param now		time of the refresh, in seconds since epoch
+	 */
+	public void refresh(Hirods source, long now) throws IOException {
+		long since = timestamp - CLOCK_MARGIN_SECONDS;
+		List<Collection> changed = IrodsQuery.getModifiedCollections(source, sourceRoot, since);
+		Set<String> changedPaths = new HashSet<String>();
+		for (Collection coll : changed) {
+			changedPaths.add(coll.getPath());
+		}
+		Set<String> known = new HashSet<String>();
+		for (Collection coll : collections) {
+			known.add(coll.getPath());
+		}
+		// list the members of modified collections again
+		Set<String> existing = new HashSet<String>();
+		Set<String> added = new HashSet<String>();
+		LinkedHashMap<String, Collection> freshColls = new LinkedHashMap<String, Collection>();
+		LinkedHashMap<String, DataObject> freshData = new LinkedHashMap<String, DataObject>();
+		for (String collPath : changedPaths) {
+			for (Collection coll : IrodsQuery.getSubCollections(source, collPath, false)) {
+				freshColls.put(coll.getPath(), coll);
+				existing.add(coll.getPath());
+				if (!known.contains(coll.getPath())) {
+					added.add(coll.getPath());
+				}
+			}
+			for (DataObject data : IrodsQuery.getDataObjects(source, collPath, false)) {
+				freshData.put(data.getPath(), data);
+			}
+		}
+		// a subtree that has been moved in keeps the modify times of the collections below its top,
+		// hence a new subcollection is listed along with its whole subtree
+		for (String collPath : added) {
+			if (inSubtree(added, IrodsObject.parent(collPath))) continue;
+			String prefix = collPath + "/";
+			// 'like' also treats '_' in a path as a wildcard, keep only true members of the subtree
+			for (Collection coll : IrodsQuery.getSubCollections(source, collPath, true)) {
+				if (coll.getPath().startsWith(prefix)) {
+					freshColls.put(coll.getPath(), coll);
+				}
+			}
+			for (DataObject data : IrodsQuery.getDataObjects(source, collPath, true)) {
+				if (data.collName.equals(collPath) || data.collName.startsWith(prefix)) {
+					freshData.put(data.getPath(), data);
+				}
+			}
+		}
+		// subcollections that no longer exist are removed along with their subtree
+		Set<String> removed = new HashSet<String>();
+		for (Collection coll : collections) {
+			if (changedPaths.contains(coll.getParentPath()) && !existing.contains(coll.getPath())) {
+				removed.add(coll.getPath());
+			}
+		}
+		collections.removeIf(coll -> changedPaths.contains(coll.getParentPath()) || inSubtree(removed, coll.getPath()));
+		dataObjects.removeIf(data -> changedPaths.contains(data.collName) || inSubtree(removed, data.collName));
+		collections.addAll(freshColls.values());
+		dataObjects.addAll(freshData.values());
+
+		// data objects may have been modified in collections that did not change
+		HashMap<String, DataObject> modified = new HashMap<String, DataObject>();
+		for (DataObject data : IrodsQuery.getModifiedDataObjects(source, sourceRoot, since)) {
+			modified.put(data.getPath(), data);
+		}
+		if (!modified.isEmpty()) {
+			dataObjects.replaceAll(data -> modified.getOrDefault(data.getPath(), data));
+		}
+		Log.info("Snapshot refreshed, " + changedPaths.size() + " collections and " + modified.size()
+				+ " data objects have been modified since " + timestamp);
+		timestamp = now;
+	}
+
+	private static boolean inSubtree(Set<String> roots, String path) {
+		if (roots.isEmpty()) return false;
+		for (String p = path; p.lastIndexOf('/') > 0; p = IrodsObject.parent(p)) {
+			if (roots.contains(p)) return true;
+		}
+		return false;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reader maps the file window by window.
+	 */
+	private static class Reader {
+		private FileChannel channel;
+		private long windowStart = 0;
+		MappedByteBuffer buffer;
+
+		Reader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			map(0);
+		}
+
+		private void map(long position) throws IOException {
+			windowStart = position;
+			long size = Math.min(MAP_WINDOW, channel.size() - position);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		}
+
+		/**
+		 * Makes sure that the next record lies within the mapped window.
+		 */
+		void ensure() throws IOException {
+			long position = windowStart + buffer.position();
+			if (buffer.remaining() < MAX_RECORD && position + buffer.remaining() < channel.size()) {
+				map(position);
+			}
+		}
+
+		String readString() throws IOException {
+			ensure();
+			byte[] bytes = new byte[(int) readVarLong()];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+
+}
@@ -1,35 +1,86 @@
 package nl.tsmeele.ipump;
 
+import java.io.IOException;
 import java.util.concurrent.Callable;
 
 import nl.tsmeele.myrods.high.IrodsUser;
 
 public abstract class Task implements Callable<Boolean> {
-	// literals that may be used as prefix to an objPath to further qualify a precondition
-	public static final String ADMIN_HAS_ACCESS = "ADMIN:";
-	public static final String AVU_ADDED = "AVU:";
-	public static final String REPUBLISHED = "PUB:";
- 
+	/* priority bands: tasks that make a collection available run first, as they unblock a
+	 * whole subtree, then the steps that complete a transferred data object, as they release
+	 * its place in the window, then data transfers, and last the tasks that do not unblock other work
+	 */
+	protected static final long COLLECTION_PRIORITY = 1L << 62;
+	protected static final long TRANSFER_PRIORITY = 1L << 61;
+	protected static final long FOLLOW_UP_PRIORITY = TRANSFER_PRIORITY + (1L << 60);
+	// iRODS error OVERWRITE_WITHOUT_FORCE_FLAG indicates that an object to be created already exists
+	protected static final int OBJECT_EXISTS = -312000;
+	
 	// source-side preconditions
 	public IrodsUser clientUser = null;	
 	public boolean runAsAgent = false;
-	public String taskPrecondition = null;	// is the precondition
+	public long taskPrecondition;	// is the precondition, see Precondition.key()
+	public int objId;				// id of the object that this task acts upon
+	
+	// next task blocked on the same precondition, maintained by TaskGraph
+	Task next = null;
 	
 	// context received from TaskRunner
 	protected TaskContext context = null;
 
 		
 
-	public Task(IrodsUser clientUser, boolean runAsAgent, String objPath) {
+	public Task(IrodsUser clientUser, boolean runAsAgent, long precondition, int objId) {
 		this.clientUser = clientUser;
-		this.taskPrecondition = objPath;
+		this.taskPrecondition = precondition;
+		this.objId = objId;
 		this.runAsAgent = runAsAgent;
 		}
 
+	/**
+	 * Runnable tasks of a user are executed in order of descending priority.
+	 * By default a task is a bookkeeping step that does not unblock further work. 
+	 * @return priority of this task
+	 */
+	public long priority() {
+		return 0L;
+	}
+	
+	/**
+	 * @param path	path of an object on source, /zone/home/<group>/...
+	 * @return true if the object resides in a Yoda vault group
+	 */
+	static boolean isVaultSpace(String path) {
+		String[] components = path.split("/");
+		return components.length >= 4 && components[3].startsWith("vault-");
+	}
+	
 	public void setContext(TaskContext context) {
 		this.context = context;
 	}
 
+	/**
+	 * Records in the journal that a step has been completed for the object, and 
+	 * unblocks the tasks that wait for this step.
+	 * @param step	precondition that the task has fulfilled
+	 * @param path	path of the object on source
+	 */
+	protected void stepDone(Precondition step, String path) throws IOException {
+		stepDone(step, objId, path);
+	}
+	
+	protected void stepDone(Precondition step, int objId, String path) throws IOException {
+		context.ctx.log.logStep(step.name(), path);
+		context.scheduler.unblock(step, objId);
+	}
+	
+	/**
+	 * @return ids of the objects that this task still has to act upon
+	 */
+	public int[] objectIds() {
+		return new int[] {objId};
+	}
+	
 	public void rescheduleTaskAsAdmin() {
 		runAsAgent = false;
 		clientUser = new IrodsUser(context.ctx.sUserName, context.ctx.sZone);
@@ -38,7 +89,7 @@ public abstract class Task implements Callable<Boolean> {
 	}
 	
 	public String toString() {
-		return this.getClass().getSimpleName() + "(" + clientUser.nameAndZone() + ", " + (runAsAgent ? "clientuser" : "rodsadmin") + ", " + taskPrecondition + ")";   
+		return this.getClass().getSimpleName() + "(" + clientUser.nameAndZone() + ", " + (runAsAgent ? "clientuser" : "rodsadmin") + ", " + Precondition.toString(taskPrecondition) + ")";   
 	}
 
 
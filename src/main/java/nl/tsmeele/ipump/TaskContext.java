@@ -1,8 +1,20 @@
 package nl.tsmeele.ipump;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.api.DataObjInp;
+import nl.tsmeele.myrods.api.ExecMyRuleInp;
+import nl.tsmeele.myrods.api.KeyValPair;
+import nl.tsmeele.myrods.api.Kw;
+import nl.tsmeele.myrods.api.ModAVUMetadataInp;
+import nl.tsmeele.myrods.api.MsParam;
+import nl.tsmeele.myrods.api.MsParamArray;
+import nl.tsmeele.myrods.api.RHostAddr;
+import nl.tsmeele.myrods.high.AVU;
 import nl.tsmeele.myrods.high.Hirods;
 import nl.tsmeele.myrods.high.IrodsObject;
 import nl.tsmeele.myrods.high.IrodsUser;
@@ -13,6 +25,13 @@ import nl.tsmeele.myrods.high.IrodsUser;
  *
  */
 public class TaskContext {
+	// iRODS errors that indicate that the server lacks a microservice
+	private static final int NO_MICROSERV_FOUND_ERR = -1090000;
+	private static final int NO_RULE_OR_MSI_FUNCTION_FOUND_ERR = -1211000;
+	private static final String RULE_ENGINE_INSTANCE_KW = "instance_name";
+	private static final String RULE_LANGUAGE_INSTANCE = "irods_rule_engine_plugin-irods_rule_language-instance";
+	private static final String ATOMIC_AVU_RULE = ExecMyRuleInp.EXTERNALRULE 
+			+ "{ msi_atomic_apply_metadata_operations(*json, *result); }";
 	public PumpContext ctx;
 	public TaskScheduler scheduler;
 
@@ -54,6 +73,185 @@ public class TaskContext {
 	}
 	
 	
+	/**
+	 * Verifies the checksum of a transferred object. A digest computed during the transfer is
+	 * compared with the source checksum, this does not read any data again. Otherwise, the destination
+	 * server computes and registers the checksum of the object, to compare with the source checksum 
+	 * or the digest.
+	 * @param sourcePath		path of source object
+	 * @param destPath			path of destination object
+	 * @param sourceChecksum	checksum in source catalog, or null
+	 * @param computed			checksum of the digest computed during the transfer, or null
+	 * An object without a checksum to compare with is kept, and recorded in the logfile as UNVERIFIED.
+	 * @return false if the checksums differ or the destination checksum cannot be computed
+	 */
+	public boolean verifyChecksum(String sourcePath, String destPath, String sourceChecksum, String computed) throws IOException {
+		String expected = sourceChecksum != null ? sourceChecksum : computed;
+		String actual = computed;
+		if (sourceChecksum == null || computed == null) {
+			actual = dest.rcDataObjChksum(new DataObjInp(destPath, null));
+			if (dest.error) {
+				String msg = "iRODS error: " + dest.intInfo + " (at destination)";
+				ctx.log.logError(sourcePath, msg);
+				Log.error(msg + " while computing checksum of '" + destPath + "'" );
+				return false;
+			}
+			if (expected == null || !Checksum.sameScheme(expected, actual)) {
+				// the copy is kept, but it is reported as not verified
+				String msg = "checksum not verified, destination checksum " + actual + " has no " 
+						+ (expected == null ? "source checksum or digest" : "checksum of the same scheme") + " to compare with";
+				Log.warning(sourcePath + ": " + msg);
+				ctx.log.logUnverified(sourcePath, msg);
+				return true;
+			}
+		}
+		if (!Checksum.matches(expected, actual)) {
+			String msg = "destination checksum is " + actual + " while source checksum is " + expected + " (" + sourcePath + ")";
+			Log.error("Transferred object copy checksum mismatch: " + msg);
+			ctx.log.logError(sourcePath, msg);
+			return false;
+		}
+		Log.debug("Checksum " + actual + " verified for '" + destPath + "'");
+		return true;
+	}
+	
+	/**
+	 * Adds AVUs to a destination object. AVUs that the object already has are not sent.
+	 * The remaining AVUs are applied in a single atomic request, or with a request per AVU
+	 * if the destination lacks the atomic microservice or rejects the atomic request.
+	 * @param kind		"-d" for a data object, "-C" for a collection
+	 * @param destPath	path of destination object
+	 * @param avus		AVUs to add
+	 * @return 0 on success, else the iRODS error of a failed request
+	 */
+	public int applyAvus(String kind, String destPath, List<AVU> avus) throws IOException {
+		if (avus.isEmpty()) {
+			return 0;
+		}
+		List<AVU> present = ctx.destAvuCache.avus(dest, kind, destPath);
+		List<AVU> missing = new ArrayList<AVU>();
+		for (AVU avu : avus) {
+			if (!contains(present, avu)) {
+				missing.add(avu);
+			}
+		}
+		if (missing.size() < avus.size()) {
+			Log.debug((avus.size() - missing.size()) + " of " + avus.size() + " AVUs already present on " + destPath);
+		}
+		if (missing.isEmpty()) {
+			return 0;
+		}
+		// a single AVU takes a single request either way
+		if (missing.size() > 1 && ctx.destAtomicAvus && applyAvusAtomically(kind, destPath, missing, present)) {
+			return 0;
+		}
+		KeyValPair options = new KeyValPair();
+		options.put(Kw.ADMIN_KW, "");
+		int avuError = 0;
+		for (AVU avu : missing) {
+			Log.debug("AVU to be added to " + destPath + ": " + avu.toString());
+			List<String> args = new ArrayList<String>();
+			if (isSingleValued(avu)) {
+				// Yoda policy requires single value with these AVU's, refuses 'add' operation
+				args.add("set");
+			} else {
+				args.add("add");
+			}
+			args.add(kind);
+			args.add(destPath);
+			args.add(avu.name);
+			args.add(avu.value);
+			args.add(avu.units);
+			ModAVUMetadataInp meta = new ModAVUMetadataInp(args, options);
+			dest.rcModAVUMetadata(meta);
+			// error -806000 = "CAT_SQL_ERR" indicates avu already present, e.g. added by a policy since it was listed
+			if (dest.error && dest.intInfo != -806000) {
+				avuError = dest.intInfo;
+			}
+		}
+		return avuError;
+	}
+	
+	/**
+	 * Applies AVUs to a destination object in a single call of msi_atomic_apply_metadata_operations.
+	 * Either all operations succeed or none is applied. A single-valued AVU replaces the values 
+	 * that the object has for its attribute.
+	 * @param present	AVUs that the destination object has
+	 * @return false if the AVUs have not been applied
+	 */
+	private boolean applyAvusAtomically(String kind, String destPath, List<AVU> missing, List<AVU> present) throws IOException {
+		StringBuilder ops = new StringBuilder();
+		for (AVU avu : missing) {
+			if (isSingleValued(avu)) {
+				for (AVU old : present) {
+					if (old.name.equals(avu.name)) {
+						appendOperation(ops, "remove", old);
+					}
+				}
+			}
+			appendOperation(ops, "add", avu);
+		}
+		String json = "{\"entity_name\":" + jsonString(destPath)
+				+ ",\"entity_type\":\"" + (kind.equals("-d") ? "data_object" : "collection") + "\""
+				+ ",\"admin_mode\":true,\"operations\":[" + ops + "]}";
+		MsParamArray input = new MsParamArray(0);
+		input.add(new MsParam("*json", json));
+		KeyValPair condition = new KeyValPair();
+		condition.put(RULE_ENGINE_INSTANCE_KW, RULE_LANGUAGE_INSTANCE);
+		ExecMyRuleInp rule = new ExecMyRuleInp(ATOMIC_AVU_RULE, new RHostAddr("", "", 0, 0), condition, "ruleExecOut", input);
+		dest.rcExecMyRule(rule);
+		if (dest.error) {
+			if (dest.intInfo == NO_MICROSERV_FOUND_ERR || dest.intInfo == NO_RULE_OR_MSI_FUNCTION_FOUND_ERR) {
+				Log.info("Destination lacks msi_atomic_apply_metadata_operations, AVUs are added one by one");
+				ctx.destAtomicAvus = false;
+			} else {
+				// e.g. an AVU added by a policy since it was listed, the per-AVU requests tolerate it
+				Log.debug("Atomic AVU request for " + destPath + " failed, iRODS error = " + dest.intInfo);
+			}
+			return false;
+		}
+		Log.debug(missing.size() + " AVUs added to " + destPath + " in a single request");
+		return true;
+	}
+	
+	private static void appendOperation(StringBuilder ops, String operation, AVU avu) {
+		if (ops.length() > 0) {
+			ops.append(',');
+		}
+		ops.append("{\"operation\":\"").append(operation)
+			.append("\",\"attribute\":").append(jsonString(avu.name))
+			.append(",\"value\":").append(jsonString(avu.value))
+			.append(",\"units\":").append(jsonString(avu.units == null ? "" : avu.units))
+			.append('}');
+	}
+	
+	private static String jsonString(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	private static boolean isSingleValued(AVU avu) {
+		return avu.name.equals("org_status") || avu.name.equals("org_vault_status");
+	}
+	
+	private static boolean contains(List<AVU> avus, AVU avu) {
+		for (AVU a : avus) {
+			if (a.name.equals(avu.name) && Objects.equals(a.value, avu.value) && Objects.equals(a.units, avu.units)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public void disconnect() {
 		// we will ignore any errors or exceptions
 		Log.debug("logging out");
@@ -0,0 +1,244 @@
+package nl.tsmeele.ipump;
+
+import java.util.Arrays;
+
+/**
+ * TaskGraph holds tasks that are blocked on a precondition, keyed by Precondition.key(objId).
+ * 
+ * To keep the heap footprint small for trees with many millions of objects, the graph does
+ * not use boxed keys or queue nodes. Instead, the keys are spread over a number of stripes.
+ * Each stripe is an open addressing hash table with a primitive array of keys and a 
+ * parallel array with the first task of an intrusive list of tasks (linked via Task.next). 
+ * Each stripe is guarded by its own lock, hence threads that block or release tasks 
+ * for different keys rarely contend.
+ * 
+ * A key can be marked as released or failed. A marked key is remembered, so that tasks 
+ * that are added after the key has been released (or has failed) are not blocked forever.
+ * Only keys that tasks of other objects wait for (those of collections) need to be marked.
+ * 
+ * @author ton
+ *
+ */
+public class TaskGraph {
+	private static final int STRIPES = 64;	// must be a power of 2
+	private static final long FREE = -1L;
+	// states of a key
+	public static final byte BLOCKED = 0;
+	public static final byte RELEASED = 1;
+	public static final byte FAILED = 2;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	
+	public TaskGraph(int expectedKeys) {
+		int perStripe = Math.max(16, expectedKeys / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(perStripe);
+		}
+	}
+	
+	/**
+	 * Adds a task to the list of tasks that wait for the given key, unless the key has been marked.
+	 * @param key	precondition key
+	 * @param task	task to block
+	 * @return		BLOCKED if the task has been added, otherwise the mark of the key
+	 */
+	public byte add(long key, Task task) {
+		Stripe stripe = stripes[stripeOf(key)];
+		synchronized (stripe) {
+			return stripe.add(key, task);
+		}
+	}
+	
+	/**
+	 * Removes all tasks that wait for the given key. 
+	 * @param key	precondition key
+	 * @return		first task of the list (in order of addition), or null if no tasks wait for the key
+	 */
+	public Task remove(long key) {
+		Stripe stripe = stripes[stripeOf(key)];
+		Task last;
+		synchronized (stripe) {
+			last = stripe.remove(key);
+		}
+		return inOrder(last);
+	}
+	
+	/**
+	 * Marks a key as released or failed and removes all tasks that wait for it. 
+	 * A key that has been marked before keeps its original mark.
+	 * @param key	precondition key
+	 * @param state	RELEASED or FAILED
+	 * @return		first task of the list (in order of addition), or null if no tasks wait for the key
+	 */
+	public Task mark(long key, byte state) {
+		Stripe stripe = stripes[stripeOf(key)];
+		Task last;
+		synchronized (stripe) {
+			last = stripe.mark(key, state);
+		}
+		return inOrder(last);
+	}
+	
+	private static Task inOrder(Task last) {
+		// tasks are linked in reverse order of addition, restore the original order
+		Task first = null;
+		while (last != null) {
+			Task previous = last.next;
+			last.next = first;
+			first = last;
+			last = previous;
+		}
+		return first;
+	}
+	
+	/**
+	 * @return number of keys that have blocked tasks
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size - stripe.marked;
+			}
+		}
+		return size;
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (int i = 0; i < stripe.keys.length; i++) {
+					if (stripe.keys[i] == FREE || stripe.marks[i] != BLOCKED) continue;
+					sb.append(Precondition.toString(stripe.keys[i]) + " :");
+					for (Task task = stripe.tasks[i]; task != null; task = task.next) {
+						sb.append(" " + task.toString());
+					}
+					sb.append("\n");
+				}
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static int stripeOf(long key) {
+		return (int) (mix(key) >>> 58) & (STRIPES - 1);
+	}
+	
+	private static long mix(long key) {
+		// finalizer of MurmurHash3, spreads sequential ids over all stripes and slots
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+	
+	
+	private static class Stripe {
+		long[] keys;
+		Task[] tasks;
+		byte[] marks;
+		int size = 0;
+		int marked = 0;
+		
+		Stripe(int expectedKeys) {
+			int capacity = Integer.highestOneBit(Math.max(16, expectedKeys * 2) - 1) << 1;
+			keys = new long[capacity];
+			Arrays.fill(keys, FREE);
+			tasks = new Task[capacity];
+			marks = new byte[capacity];
+		}
+		
+		byte add(long key, Task task) {
+			int slot = insert(key);
+			if (marks[slot] != BLOCKED) {
+				return marks[slot];
+			}
+			task.next = tasks[slot];
+			tasks[slot] = task;
+			return BLOCKED;
+		}
+		
+		Task mark(long key, byte state) {
+			int slot = insert(key);
+			if (marks[slot] != BLOCKED) {
+				return null;
+			}
+			Task task = tasks[slot];
+			tasks[slot] = null;
+			marks[slot] = state;
+			marked++;
+			return task;
+		}
+		
+		private int insert(long key) {
+			int slot = find(key);
+			if (keys[slot] == FREE) {
+				if ((size + 1) * 4 > keys.length * 3) {
+					grow();
+					slot = find(key);
+				}
+				keys[slot] = key;
+				size++;
+			}
+			return slot;
+		}
+		
+		Task remove(long key) {
+			int slot = find(key);
+			if (keys[slot] == FREE) return null;
+			Task task = tasks[slot];
+			if (marks[slot] != BLOCKED) {
+				marked--;
+			}
+			size--;
+			// backward shift deletion keeps the probe sequences of other keys intact
+			int mask = keys.length - 1;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (keys[next] != FREE) {
+				int home = (int) mix(keys[next]) & mask;
+				// move the entry if its home slot does not lie cyclically in (hole, next]
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					tasks[hole] = tasks[next];
+					marks[hole] = marks[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[hole] = FREE;
+			tasks[hole] = null;
+			marks[hole] = BLOCKED;
+			return task;
+		}
+		
+		private int find(long key) {
+			int mask = keys.length - 1;
+			int slot = (int) mix(key) & mask;
+			while (keys[slot] != FREE && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		private void grow() {
+			long[] oldKeys = keys;
+			Task[] oldTasks = tasks;
+			byte[] oldMarks = marks;
+			keys = new long[oldKeys.length * 2];
+			Arrays.fill(keys, FREE);
+			tasks = new Task[oldKeys.length * 2];
+			marks = new byte[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] == FREE) continue;
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				tasks[slot] = oldTasks[i];
+				marks[slot] = oldMarks[i];
+			}
+		}
+	}
+	
+}
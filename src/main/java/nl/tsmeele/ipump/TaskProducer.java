@@ -0,0 +1,330 @@
+package nl.tsmeele.ipump;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+
+import nl.tsmeele.log.Log;
+import nl.tsmeele.myrods.high.Collection;
+import nl.tsmeele.myrods.high.DataObject;
+import nl.tsmeele.myrods.high.Hirods;
+import nl.tsmeele.myrods.high.IrodsUser;
+
+/**
+ * TaskProducer adds the tasks for source objects to the TaskScheduler.
+ *
+ * PumpMain may use the producer to schedule objects that it has enumerated up front.
+ * Alternatively, the producer runs on a thread of its own and walks the source collection
+ * tree depth first, one collection at a time, while the scheduler already executes tasks.
+ * Each data object needs admission by the scheduler, hence the number of data objects
+ * in memory is bounded by the in-flight window.
+ *
+ * For each object, the producer plans the tasks of its steps (see Precondition), each task
+ * blocked on the step before it. Tasks that act on several data objects of a collection
+ * are planned by a GroupPlanner.
+ *
+ * The producer uses the rodsadmin connections of PumpMain, and disconnects them once done.
+ *
+ * @author ton
+ *
+ */
+public class TaskProducer implements Runnable {
+	private PumpContext ctx;
+	private TaskScheduler scheduler;
+	private ObjectIds ids;
+	private Hirods source, dest;
+	private IrodsUser sourceAdmin;
+	private CompletedIndex excludeList;
+	// agents resolved so far, keyed on owner name#zone, tasks of the same owner share a single IrodsUser instance
+	private HashMap<String, IrodsUser> agents = new HashMap<String, IrodsUser>();
+	private GroupPlanner planner;
+	private int dataCount = 0;
+	private int collCount = 0;
+	private int dataSkipped = 0;
+	private int collSkipped = 0;
+	// tasks left out by planning
+	private int prunedNoOps = 0;
+	private int prunedCompleted = 0;
+	private int merged = 0;
+
+	public TaskProducer(PumpContext ctx, TaskScheduler scheduler, ObjectIds ids, Hirods source, Hirods dest,
+			IrodsUser sourceAdmin, CompletedIndex excludeList) {
+		this.ctx = ctx;
+		this.scheduler = scheduler;
+		this.ids = ids;
+		this.source = source;
+		this.dest = dest;
+		this.sourceAdmin = sourceAdmin;
+		this.excludeList = excludeList;
+		planner = new GroupPlanner(ctx, scheduler, sourceAdmin);
+	}
+
+	@Override
+	public void run() {
+		try {
+			walk(ctx.sourceObject.getPath());
+			Log.info("Source object consists of " + dataCount + " data objects and " + collCount + " subcollections");
+			if (dataSkipped > 0) {
+				Log.info("Skipped " + dataSkipped + " data objects found in resume log");
+			}
+			if (collSkipped > 0) {
+				Log.info("Skipped " + collSkipped + " subcollections found in resume log");
+			}
+			logPlanning();
+		} catch (IOException | UncheckedIOException e) {
+			Log.error("Enumeration of source collection aborted: " + e.getMessage());
+		} finally {
+			// we're done with preparations
+			try {
+				source.rcDisconnect();
+				dest.rcDisconnect();
+			} catch (IOException e) { }
+			scheduler.feedingDone();
+		}
+	}
+
+	private void walk(String sourceRoot) throws IOException {
+		// a stack of collections for which members still need to be scheduled
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(sourceRoot);
+		while (!pending.isEmpty()) {
+			String collPath = pending.pop();
+			List<Collection> subColls = IrodsQuery.getSubCollections(source, collPath, false);
+			for (Collection coll : subColls) {
+				collCount++;
+				boolean completed = excludeList.contains(coll.getPath());
+				if (completed) {
+					collSkipped++;
+				}
+				// the size of the subtree is still unknown
+				scheduleCollection(coll, 0, completed);
+				pending.push(coll.getPath());
+			}
+			IrodsQuery.forEachDataObject(source, collPath, false, data -> {
+				dataCount++;
+				if (excludeList.contains(data.getPath())) {
+					dataSkipped++;
+					return;
+				}
+				try {
+					scheduleDataObject(data);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			// all members of the collection have been scheduled
+			flush();
+		}
+	}
+
+	/**
+	 * Schedules the tasks for a collection.
+	 * Only tasks that have work to do are scheduled: a republication check is left out for a 
+	 * collection outside a vault, a completed collection is released without tasks, and
+	 * the bookkeeping steps of a collection run as a single task.
+	 * On resume, tasks for steps that an earlier operation has journaled as completed are 
+	 * left out, and these steps are released right away.
+	 * @param coll			collection on source
+	 * @param subtreeSize	number of objects in the subtree of the collection
+	 * @param completed		true if the collection has been completed in an earlier run
+	 */
+	public void scheduleCollection(Collection coll, int subtreeSize, boolean completed) throws IOException {
+		int collId = ids.collection(coll.getPath());
+		if (ctx.audit) {
+			// an audit acts on collections that exist at destination already
+			scheduler.unblock(Precondition.ADMIN_HAS_ACCESS, collId);
+			return;
+		}
+		int parentId = ids.collection(coll.getParentPath());
+		planner.addSubCollection(parentId);
+		if (completed) {
+			/* the collection exists at destination, and PumpMain has given the rodsadmin access to
+			 * the whole destination tree, hence underlying objects can be unblocked right away
+			 */
+			prunedCompleted += 2;
+			releaseSteps(CompletedIndex.DONE, collId);
+			return;
+		}
+		IrodsUser agent = agentFor(coll.owner);
+		boolean runAsAgent = agent != sourceAdmin;
+		byte step = excludeList.stepOf(coll.getPath());
+		// tasks are added last to first, a task must be blocked before its predecessor can release it
+		// the bookkeeping steps of a collection do not unblock other work, they run as a single task
+		List<Task> steps = new ArrayList<Task>();
+		if (step < Precondition.AVU_ADDED.ordinal()) {
+			// AVUs can be added to a collection once the rodsadmin has sufficient access to that collection
+			steps.add(new AddCollectionAvusTask(sourceAdmin, false, Precondition.ADMIN_HAS_ACCESS.key(collId), collId, coll));
+		}
+		if (step < Precondition.REPUBLISHED.ordinal()) {
+			if (Task.isVaultSpace(coll.getPath())) {
+				// add reminder in logfile to republish a data package once AVUs have been added to the collection
+				steps.add(new RepublishCollectionTask(sourceAdmin, false, Precondition.AVU_ADDED.key(collId), collId, coll));
+			} else {
+				prunedNoOps++;
+			}
+		}
+		// Log collection done once any republication reminder has been processed for the collection
+		long logPrecondition = step < Precondition.REPUBLISHED.ordinal() ? Precondition.AVU_ADDED.key(collId) : Precondition.REPUBLISHED.key(collId);
+		steps.add(new LogCollectionDoneTask(sourceAdmin, false, logPrecondition, collId, coll));
+		if (steps.size() == 1) {
+			scheduler.addBlockedTask(steps.get(0));
+		} else {
+			FusedTask fused = new FusedTask(sourceAdmin, false, steps.get(0).taskPrecondition, collId);
+			for (Task task : steps) {
+				fused.add(task);
+			}
+			merged += steps.size() - 1;
+			scheduler.addBlockedTask(fused);
+		}
+		if (step < Precondition.ADMIN_HAS_ACCESS.ordinal()) {
+			// admin access can be added to a collection once the collection exists
+			scheduler.addBlockedTask(new AddAdminAccessToCollectionTask(sourceAdmin, false, Precondition.EXISTS.key(collId), collId, coll, subtreeSize));
+		}
+		if (step < Precondition.EXISTS.ordinal()) {
+			// a collection can be created once its parent collection exists
+			scheduler.addBlockedTask(new CreateCollectionTask(agent, runAsAgent, Precondition.EXISTS.key(parentId), collId, coll, subtreeSize));
+		}
+		releaseSteps(step, collId);
+	}
+
+	/**
+	 * Schedules the tasks for a data object, once the in-flight window admits the object.
+	 * In audit mode, the only task is the audit of the object. On resume, tasks for completed
+	 * steps are left out, as for collections.
+	 * @param data	data object on source
+	 */
+	public void scheduleDataObject(DataObject data) throws IOException {
+		if (ctx.audit) {
+			scheduleAudit(data);
+			return;
+		}
+		IrodsUser agent = agentFor(data.owner);
+		boolean runAsAgent = agent != sourceAdmin;
+		if (!scheduler.tryAdmitDataObject()) {
+			// objects in unscheduled batches and groups hold part of the window, schedule them before we wait
+			planner.flush(false);
+			scheduler.admitDataObject();
+		}
+		int dataId = ids.dataObject();
+		int parentId = ids.collection(data.getParentPath());
+		byte step = excludeList.stepOf(data.getPath());
+		// with fusion, a transfer that runs as rodsadmin is followed by the other steps in the same task 
+		boolean fuseTransfer = ctx.fuse && step < Precondition.EXISTS.ordinal() && !runAsAgent && data.dataSize >= ctx.smallFiles;
+		// tasks are added last to first, a task must be blocked before its predecessor can release it
+		if (ctx.fuse) {
+			scheduleFusedSteps(agent, parentId, dataId, data, step, fuseTransfer);
+		} else {
+			// Log data object done once AVUs have been added to the object
+			scheduler.addBlockedTask(new LogDataObjectDoneTask(sourceAdmin, false, Precondition.AVU_ADDED.key(dataId), dataId, data));
+			if (step < Precondition.AVU_ADDED.ordinal()) {
+				// AVUs can be added to a data object once the rodsadmin has sufficient access to that object
+				scheduler.addBlockedTask(new AddDataObjectAvusTask(sourceAdmin, false, Precondition.ADMIN_HAS_ACCESS.key(dataId), dataId, data));
+			}
+		}
+		if (step < Precondition.ADMIN_HAS_ACCESS.ordinal() && !fuseTransfer) {
+			// admin access is added to the data objects of a collection as a group
+			planner.joinAccessGroup(parentId, dataId, data);
+		}
+		if (fuseTransfer) {
+			// the transfer is part of the fused task
+		} else if (step < Precondition.EXISTS.ordinal() && data.dataSize < ctx.smallFiles) {
+			// small data objects are transferred in batches per collection
+			planner.addToBatch(agent, runAsAgent, parentId, dataId, data);
+		} else if (step < Precondition.EXISTS.ordinal()) {
+			// a data object can be copied once the rodsadmin has sufficient access to the collection in which it will reside
+			scheduler.addBlockedTask(new PumpDataObjectTask(agent, runAsAgent, Precondition.ADMIN_HAS_ACCESS.key(parentId), dataId, data));
+		}
+		releaseSteps(step, dataId);
+	}
+	
+	/**
+	 * Schedules the audit of a data object, if it is part of the sample.
+	 */
+	private void scheduleAudit(DataObject data) {
+		if (!ChecksumAuditTask.sampled(data.getPath(), ctx.samplePercent)) {
+			return;
+		}
+		scheduler.admitDataObject();
+		int dataId = ids.dataObject();
+		int parentId = ids.collection(data.getParentPath());
+		scheduler.addBlockedTask(new ChecksumAuditTask(sourceAdmin, false, Precondition.ADMIN_HAS_ACCESS.key(parentId), dataId, data));
+	}
+	
+	/**
+	 * Schedules the steps of a data object that run as rodsadmin as a single fused task (option -fuse).
+	 * @param fuseTransfer	true if the fused task includes the transfer, which runs as rodsadmin too
+	 */
+	private void scheduleFusedSteps(IrodsUser agent, int parentId, int dataId, DataObject data, byte step, boolean fuseTransfer) {
+		// a fused transfer waits for access to the parent collection, the other steps wait for access to the object
+		long precondition = fuseTransfer ? Precondition.ADMIN_HAS_ACCESS.key(parentId) : Precondition.ADMIN_HAS_ACCESS.key(dataId);
+		FusedTask fused = new FusedTask(sourceAdmin, false, precondition, dataId);
+		if (fuseTransfer) {
+			fused.add(new PumpDataObjectTask(agent, false, precondition, dataId, data));
+			if (step < Precondition.ADMIN_HAS_ACCESS.ordinal()) {
+				fused.add(new AddAdminAccessToDataObjectTask(sourceAdmin, false, Precondition.EXISTS.key(dataId), dataId, data));
+			}
+		}
+		if (step < Precondition.AVU_ADDED.ordinal()) {
+			fused.add(new AddDataObjectAvusTask(sourceAdmin, false, Precondition.ADMIN_HAS_ACCESS.key(dataId), dataId, data));
+		}
+		fused.add(new LogDataObjectDoneTask(sourceAdmin, false, Precondition.AVU_ADDED.key(dataId), dataId, data));
+		scheduler.addBlockedTask(fused);
+	}
+	
+	/**
+	 * Schedules the tasks of the GroupPlanner that have not been scheduled yet.
+	 */
+	public void flush() {
+		planner.flush(true);
+	}
+	
+	public void logPlanning() {
+		if (prunedNoOps + prunedCompleted + merged > 0) {
+			Log.info("Planning pruned " + (prunedNoOps + prunedCompleted) + " tasks (" + prunedNoOps + " republication checks outside a vault, "
+					+ prunedCompleted + " for completed collections) and merged " + merged + " tasks into their predecessor");
+		}
+		planner.logPlanning();
+	}
+
+	/**
+	 * Releases the steps of an object that an earlier operation has completed.
+	 * @param step	last completed step
+	 */
+	private void releaseSteps(byte step, int objId) {
+		for (Precondition precondition : Precondition.values()) {
+			if (precondition.ordinal() <= step) {
+				scheduler.unblock(precondition, objId);
+			}
+		}
+	}
+
+	/**
+	 * We aim to act on behalf of the object owner, unless the owner:
+	 * a) does not exist on source or destination
+	 * b) is a non-local account on the source, since we cannot map them
+	 *   (in that case we probably should not assume user#sourceZone == user#destZone)
+	 * @return	owner to act on behalf of, or else the rodsadmin
+	 */
+	private IrodsUser agentFor(IrodsUser owner) throws IOException {
+		String key = owner.nameAndZone();
+		IrodsUser agent = agents.get(key);
+		if (agent == null) {
+			agent = owner;
+			if (!owner.zone.equals(ctx.sourceLocalZone)) {
+				Log.debug("Object owner " + key + " is non-local on source server");
+				agent = sourceAdmin;
+			} else if (source.getUserType(owner.name, ctx.sourceLocalZone) == null
+					|| dest.getUserType(owner.name, ctx.destLocalZone) == null) {
+				Log.debug("Object owner " + key + " does not exist on source or destination");
+				agent = sourceAdmin;
+			}
+			agents.put(key, agent);
+		}
+		return agent;
+	}
+
+}
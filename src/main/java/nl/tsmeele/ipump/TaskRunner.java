@@ -29,15 +29,32 @@ public class TaskRunner implements Callable<Boolean> {
 
 	@Override
 	public Boolean call() throws Exception {
+		boolean retired = false;
+		try {
+			retired = runTasks();
+			return true;
+		} finally {
+			// let the scheduler know that it may need to start a new runner
+			scheduler.runnerDone(clientUser, retired);
+		}
+	}
+	
+	/**
+	 * Executes runnable tasks of our client user until the queue is exhausted.
+	 * @return true if the run stopped early because the scheduler lowered the number of runners
+	 */
+	private boolean runTasks() {
 		context = new TaskContext(ctx, scheduler);
 		
-		Task nextTask = scheduler.pollRunnableTask(clientUser);
+		boolean retired = false;
 		int seq = 0;
-		while (nextTask != null) {
-			Task thisTask = nextTask;
-			nextTask = scheduler.pollRunnableTask(clientUser);
+		while (!(retired = scheduler.retireRunner())) {
+			Task thisTask = scheduler.pollRunnableTask(clientUser);
+			if (thisTask == null) {
+				break;
+			}
 			thisTask.setContext(context);
-			Log.debug("Running task" + seq + " " + thisTask.taskPrecondition + " for user " + clientUser + " as " + (thisTask.runAsAgent ? "clientuser" : "rodsadmin"));
+			Log.debug("Running task" + seq + " " + Precondition.toString(thisTask.taskPrecondition) + " for user " + clientUser + " as " + (thisTask.runAsAgent ? "clientuser" : "rodsadmin"));
 
 			// check if max tasks per connection is reached
 			seq++;
@@ -51,18 +68,30 @@ public class TaskRunner implements Callable<Boolean> {
 			// establish server connections for task 
 			if (thisTask.runAsAgent && !context.loginAsClientUser(thisTask.clientUser)) {
 				Log.error("Task unable to login as " + thisTask.clientUser.nameAndZone() + " on source and/or destination");
+				scheduler.taskDone(clientUser, false);
+				scheduler.abandon(thisTask);
 				continue;
 			} 
 			if (!thisTask.runAsAgent && !context.loginAsAdmin()) {
 				Log.error("Task unable to login as rodsadmin on source and/or destination");
+				scheduler.taskDone(clientUser, false);
+				scheduler.abandon(thisTask);
 				continue;
 			}
 			
 			// execute the task
 			try {
-				thisTask.call();
+				Boolean result = thisTask.call();
+				// tasks signal failure by returning false
+				boolean success = !Boolean.FALSE.equals(result);
+				scheduler.taskDone(clientUser, success);
+				if (!success) {
+					scheduler.abandon(thisTask);
+				}
 			} catch (Exception e) { 
 				Log.debug("Task has thrown: " + e.getMessage());
+				scheduler.taskDone(clientUser, false);
+				scheduler.abandon(thisTask);
 				// establish a clean starting point for next task
 				context.disconnect();
 				seq = 0;
@@ -70,7 +99,7 @@ public class TaskRunner implements Callable<Boolean> {
 		}
 		// make sure any remaining connections are cleaned up after all tasks are done
 		context.disconnect();
-		return true;
+		return retired;
 	}
 
 
@@ -1,13 +1,12 @@
 package nl.tsmeele.ipump;
 
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import nl.tsmeele.log.Log;
 
 /**
@@ -15,11 +14,12 @@ import nl.tsmeele.log.Log;
  * It maintains two queue structures:
  * 
  * 1. Blocked : 
- * Tasks on this Map structure are queued per IrodsObject (or other resource). 
+ * Tasks on this TaskGraph structure are queued per precondition of an IrodsObject,
+ * the object is identified by an integer id (see ObjectIds and Precondition).
  * Queued tasks require the IrodsObject to exist before they can be executed
  * 
  * 2. Runnable:
- * Tasks on this Map structure are queued per IrodsUser.
+ * Tasks on this Map structure are queued per IrodsUser (see RunQueue).
  * Queued tasks require an authenticated session (on behalf of the IrodsUser) 
  * to the source and destination Irods servers. 
  * 
@@ -36,9 +36,10 @@ import nl.tsmeele.log.Log;
  * 
  * The scheduler is capable of running multiple runs in parallel, hence service
  * multiple IrodsUser. Each run executes in a separate thread. 
+ * The number of concurrent runs is limited by a RunnerController (see runTasks).
  * 
  * The scheduler stops when all scheduled runs have completed and the 
- * Runnable queue is completely empty.
+ * Runnable queue is completely empty, and no TaskProducer is feeding tasks.
  *
  * The scheduler itself does not unblock tasks to make them runnable. This
  * can be done by executing tasks. For instance, a task that creates a
@@ -49,113 +50,347 @@ import nl.tsmeele.log.Log;
  *
  */
 public class TaskScheduler {
-	private final int MAXTHREADS = 8;
-	private int clientThreads = 2; // default
 	private PumpContext ctx;
-	// as we expect many keys in Map blocked, we initialize with a decent start capacity
-	private HashMap<String, Queue<Task>> blocked = new HashMap<String, Queue<Task>>(100000);
-	private HashMap<String, Queue<Task>> runnable = new HashMap<String, Queue<Task>>();
+	private RunnerController controller;
+	private ObjectIds ids;
+	// as we expect many keys in graph blocked, we initialize with a decent start capacity
+	private TaskGraph blocked = new TaskGraph(100000);
+	// queues of runnable tasks are kept once created for an IrodsUser, they may be empty
+	private Map<String, RunQueue> runnable = new ConcurrentHashMap<String, RunQueue>();
+	// number of runners that have been submitted and have not yet completed or retired
+	private AtomicInteger active = new AtomicInteger(0);
+	// signals the scheduler thread that a task became runnable or a runner completed
+	private Semaphore events = new Semaphore(0);
+	// data objects that may be in flight, the window is unbounded unless tasks are streamed
+	private Semaphore window;
+	// additional parallel streams that transfers may open, unbounded unless configured
+	private Semaphore streams;
+	// groups that wait for data objects to exist, keyed on data object id
+	private Map<Integer, AddAdminAccessToDataObjectsTask> arrivals = new ConcurrentHashMap<Integer, AddAdminAccessToDataObjectsTask>();
+	private volatile boolean feeding = false;
+	private AtomicInteger abandoned = new AtomicInteger(0);
 	
-	public TaskScheduler(PumpContext ctx, int clientThreads) {
-		if (clientThreads > 0 && clientThreads <= MAXTHREADS) {
-			this.clientThreads = clientThreads;
-		}
+	public TaskScheduler(PumpContext ctx, RunnerController controller, ObjectIds ids) {
 		this.ctx = ctx;
+		this.controller = controller;
+		this.ids = ids;
+		window = new Semaphore(ctx.stream ? ctx.window : Integer.MAX_VALUE);
+		streams = new Semaphore(ctx.maxStreams > 0 ? ctx.maxStreams : Integer.MAX_VALUE);
 	}
 	
 	public int countBlockedObjects() {
-		return blocked.keySet().size();
+		return blocked.size();
+	}
+	
+	public int countAbandonedTasks() {
+		return abandoned.get();
+	}
+	
+	/**
+	 * Signals that a producer is about to feed tasks while runTasks executes.
+	 */
+	public void feedingStarted() {
+		feeding = true;
+	}
+	
+	/**
+	 * Signals that the producer has added all its tasks. 
+	 */
+	public void feedingDone() {
+		feeding = false;
+		events.release();
+	}
+	
+	/**
+	 * Waits until the window admits another data object to be scheduled. 
+	 * The window limits the number of data objects in flight (scheduled and not yet done 
+	 * or abandoned), it is unbounded unless tasks are streamed.
+	 */
+	public void admitDataObject() {
+		window.acquireUninterruptibly();
+	}
+	
+	/**
+	 * @return true if the window admits another data object right away
+	 */
+	public boolean tryAdmitDataObject() {
+		return window.tryAcquire();
+	}
+	
+	/**
+	 * Called once the last task of a data object has completed.
+	 */
+	public void dataObjectDone() {
+		window.release();
+	}
+	
+	/**
+	 * Claims additional parallel streams for a transfer. The transfer does not wait for
+	 * streams, it gets fewer streams if other transfers hold most of them. 
+	 * @param wanted	number of additional streams the transfer would like to use
+	 * @return number of additional streams granted, to be released once the transfer has ended
+	 */
+	public int acquireStreams(int wanted) {
+		int granted = wanted;
+		while (granted > 0 && !streams.tryAcquire(granted)) {
+			granted = Math.min(granted - 1, streams.availablePermits());
+		}
+		return Math.max(granted, 0);
+	}
+	
+	public void releaseStreams(int count) {
+		if (count > 0) {
+			streams.release(count);
+		}
 	}
 	
 	/**
 	 * RunTasks will keep scheduling tasks to run until the Runnable queue is exhausted.
 	 * 
+	 * Rather than polling, the scheduler waits until it is notified of an event that 
+	 * may require a new runner: a task has become runnable or a runner has completed.
+	 * 
+	 * Multiple runs may process the queue of the same IrodsUser in parallel, up to a 
+	 * configured limit per user. An additional run is only submitted if the user has more
+	 * queued tasks than idle runs. The number of concurrent runs is limited by the
+	 * RunnerController, which may adapt the limit during execution. As each run holds 
+	 * a single connection to the source and to the destination server, this limit is 
+	 * also the cap on connections per server.
 	 */
 	public void runTasks() {
-		ExecutorService executor = Executors.newFixedThreadPool(clientThreads);
-		HashMap<String,Future<Boolean>> scheduled = new HashMap<String,Future<Boolean>>();
+		ExecutorService executor = Executors.newFixedThreadPool(ctx.runners);
 		
-		while (!runnable.isEmpty() || !scheduled.isEmpty()) {
-			// schedule a runner for each IrodsUser that has runnable tasks
-			for (String clientUser : runnable.keySet()) {
-				// only schedule a new runner if not active already
-				if (!scheduled.containsKey(clientUser)) {
-					Future<Boolean> runner = executor.submit(new TaskRunner(ctx, this, clientUser));
-					scheduled.put(clientUser, runner);
-				}
+		while (true) {
+			// any event signalled from here on will be noticed by our next wait 
+			events.drainPermits();
+			// check active runners first, tasks can only be added while a runner is active or a producer feeds
+			if (!feeding && !hasActiveRunners() && !hasRunnableTasks()) {
+				break;
 			}
-			// wait a little, allow some runners to complete
-			try {
-				Thread.sleep(100L);
-			} catch (InterruptedException e) { }
-			
-			// account for completed runners
-			for (Iterator<HashMap.Entry<String,Future<Boolean>>> it = scheduled.entrySet().iterator(); it.hasNext();) {
-				Map.Entry<String,Future<Boolean>> entry = it.next();
-				// String clientUser = entry.getKey();
-				Future<Boolean> runner = entry.getValue();
-				if (runner.isDone()) {
-					it.remove();
+			// schedule runners for each IrodsUser that has runnable tasks
+			for (Map.Entry<String, RunQueue> entry : runnable.entrySet()) {
+				RunQueue queue = entry.getValue();
+				// only schedule another runner if the user has more tasks than idle runners,
+				// runners that are busy on a long transfer will not pick up a queued task soon
+				while (active.get() < controller.limit() 
+						&& queue.runners() < ctx.userRunners 
+						&& queue.size() > queue.idleRunners()) {
+					queue.runnerStarted();
+					active.incrementAndGet();
+					executor.submit(new TaskRunner(ctx, this, entry.getKey()));
 				}
 			}
-		} 
+			// wait until a task becomes runnable or a runner completes
+			if (controller.isAdaptive()) {
+				// in adaptive mode we also wake up to reconsider the number of runners
+				try {
+					events.tryAcquire(controller.millisToNextTick() + 1, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) { }
+				controller.tick();
+			} else {
+				events.acquireUninterruptibly();
+			}
+		}
 		
 		// All runners are done and our runnable queue is exhausted...we're done
 		executor.shutdown();
 		Log.debug("Scheduler shutdown");
 	}
 	
-	public synchronized void addBlockedTask(Task task) {
-		Queue<Task> tasks = blocked.get(task.taskPrecondition);
-		if (tasks == null) {
-			tasks = new ConcurrentLinkedQueue<Task>();
+	/**
+	 * Called by a TaskRunner before it polls its next task, to find out if it should stop
+	 * because the limit on concurrent runners has been lowered. The remaining tasks of
+	 * a retired runner are picked up by a later run.
+	 * @return true if the runner must stop
+	 */
+	public boolean retireRunner() {
+		int n;
+		do {
+			n = active.get();
+			if (n <= controller.limit()) {
+				return false;
+			}
+		} while (!active.compareAndSet(n, n - 1));
+		return true;
+	}
+	
+	/**
+	 * Called by a TaskRunner once it has exhausted the runnable queue of its IrodsUser, or has retired.
+	 * @param clientUser	user serviced by the runner
+	 * @param retired		true if the runner has retired (and has been accounted for as such)
+	 */
+	public void runnerDone(String clientUser, boolean retired) {
+		if (!retired) {
+			active.decrementAndGet();
 		}
-		tasks.add(task);
-		blocked.put(task.taskPrecondition, tasks);
+		runnable.get(clientUser).runnerDone();
+		events.release();
+	}
+	
+	public void taskDone(String clientUser, boolean success) {
+		runnable.get(clientUser).taskDone();
+		controller.taskDone(success);
+	}
+	
+	public void bytesTransferred(long count) {
+		controller.bytesTransferred(count);
 	}
 	
-	public synchronized void unblock(String objPath) {
-		Queue<Task> tasks = blocked.remove(objPath);
-		if (tasks == null) return;
-		Task task = tasks.poll();
+	public void addBlockedTask(Task task) {
+		switch (blocked.add(task.taskPrecondition, task)) {
+			case TaskGraph.RELEASED:
+				addRunnableTask(task);
+				break;
+			case TaskGraph.FAILED:
+				abandon(task);
+				break;
+			default:
+		}
+	}
+	
+	public void unblock(Precondition precondition, int objId) {
+		unblock(precondition.key(objId));
+	}
+	
+	/**
+	 * Moves the tasks that wait for a precondition to the Runnable queue of their IrodsUser.
+	 * The TaskGraph is lock striped, hence runners can block and unblock tasks without
+	 * contending for a scheduler-wide lock. A precondition is released only once: its tasks
+	 * are removed atomically. Preconditions of collections are remembered once released, 
+	 * a task that is added later for a released precondition is runnable right away.
+	 */
+	public void unblock(long precondition) {
+		// once removed, no other thread is able to release the same tasks
+		Task task;
+		if (ids.isCollection(Precondition.objectIdOf(precondition))) {
+			// tasks of members may still be added later on
+			task = blocked.mark(precondition, TaskGraph.RELEASED);
+		} else {
+			task = blocked.remove(precondition);
+			if (Precondition.kindOf(precondition) == Precondition.EXISTS) {
+				arrived(Precondition.objectIdOf(precondition), true);
+			}
+		}
 		while (task != null) {
+			Task next = task.next;
+			task.next = null;
 			addRunnableTask(task);
-			task = tasks.poll();
+			task = next;
 		}
 	}
 	
-	private synchronized void addRunnableTask(Task task) {
-		Queue<Task> tasks = runnable.get(task.clientUser.nameAndZone());
-		if (tasks == null) {
-			tasks = new ConcurrentLinkedQueue<Task>();
+	/**
+	 * Makes a group task wait until a data object has landed at destination or has been abandoned.
+	 * A group task is not kept in the TaskGraph, the scheduler counts its members as they
+	 * arrive and makes it runnable after the last one.
+	 * @param dataId	id of a data object that does not exist at destination yet
+	 */
+	public void awaitArrival(int dataId, AddAdminAccessToDataObjectsTask group) {
+		arrivals.put(dataId, group);
+	}
+	
+	/**
+	 * Closes a group for new members, the group task runs once all members have arrived.
+	 * @param wholeCollection	true if the group holds all data objects of a collection without subcollections
+	 */
+	public void sealGroup(AddAdminAccessToDataObjectsTask group, boolean wholeCollection) {
+		if (group.seal(wholeCollection)) {
+			addRunnableTask(group);
 		}
-		tasks.add(task);
-		runnable.put(task.clientUser.nameAndZone(), tasks);
 	}
 	
-	public synchronized Task pollRunnableTask(String clientUser) {
-		Queue<Task> tasks = runnable.get(clientUser);
-		// any task available?
-		if (tasks == null) return null;
-		// poll first available task, cleanup queue if it is the last task
-		Task task = tasks.poll();
-		if (tasks.isEmpty()) {
-			runnable.remove(clientUser);
+	private void arrived(int dataId, boolean exists) {
+		AddAdminAccessToDataObjectsTask group = arrivals.remove(dataId);
+		if (group != null && group.arrived(dataId, exists)) {
+			addRunnableTask(group);
+		}
+	}
+	
+	/**
+	 * Abandons a task that has failed, including all tasks that depend on it.
+	 * @param task	failed task
+	 */
+	public void abandon(Task task) {
+		abandoned.incrementAndGet();
+		Log.debug("Abandoned " + task.toString());
+		for (int objId : task.objectIds()) {
+			abandonObject(objId);
+		}
+	}
+	
+	/**
+	 * Abandons the tasks that depend on an object. For a collection this includes any 
+	 * tasks for its subtree that are added later on.
+	 * @param objId	id of an object for which a step has failed
+	 */
+	public void abandonObject(int objId) {
+		if (ids.isCollection(objId)) {
+			// preconditions that have been released stay released, the others will never be released
+			for (Precondition precondition : Precondition.values()) {
+				Task dependent = blocked.mark(precondition.key(objId), TaskGraph.FAILED);
+				while (dependent != null) {
+					Task next = dependent.next;
+					dependent.next = null;
+					abandon(dependent);
+					dependent = next;
+				}
+			}
 		} else {
-			runnable.put(clientUser, tasks);
+			// remaining tasks of a data object only depend on each other
+			for (Precondition precondition : Precondition.values()) {
+				for (Task dependent = blocked.remove(precondition.key(objId)); dependent != null; dependent = dependent.next) {
+					abandoned.incrementAndGet();
+				}
+			}
+			arrived(objId, false);
+			dataObjectDone();
+		}
+	}
+	
+	private void addRunnableTask(Task task) {
+		String clientUser = task.clientUser.nameAndZone();
+		RunQueue queue = runnable.computeIfAbsent(clientUser, key -> new RunQueue());
+		queue.add(task);
+		// wake up the scheduler if it may start another runner for this user
+		if (queue.runners() < ctx.userRunners) {
+			events.release();
+		}
+	}
+	
+	public Task pollRunnableTask(String clientUser) {
+		RunQueue queue = runnable.get(clientUser);
+		// any task available?
+		if (queue == null) return null;
+		Task task = queue.poll();
+		if (task != null && queue.size() > 0) {
+			// this runner is busy now, the scheduler may need to start another runner for the remaining tasks
+			events.release();
 		}
 		return task;
 	}
 	
+	private boolean hasActiveRunners() {
+		for (RunQueue queue : runnable.values()) {
+			if (queue.runners() > 0) return true;
+		}
+		return false;
+	}
+	
+	private boolean hasRunnableTasks() {
+		for (RunQueue queue : runnable.values()) {
+			if (!queue.isEmpty()) return true;
+		}
+		return false;
+	}
+	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("Blocked tasks:\n");
-		for (String key : blocked.keySet()) {
-			sb.append(key + " : " + blocked.get(key).toString() + "\n");
-		}
+		sb.append(blocked.toString());
 		sb.append("\nUnblocked tasks:\n");
-		for (String key : runnable.keySet()) {
-			sb.append(key + " : " + runnable.get(key).toString() + "\n");
+		for (Map.Entry<String, RunQueue> entry : runnable.entrySet()) {
+			if (entry.getValue().isEmpty()) continue;
+			sb.append(entry.getKey() + " : " + entry.getValue().toString() + "\n");
 		}
 		return sb.toString();
 	}
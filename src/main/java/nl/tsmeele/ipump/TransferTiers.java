@@ -0,0 +1,95 @@
+package nl.tsmeele.ipump;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TransferTiers decides how many parallel streams to use for the transfer of a data object,
+ * based on the size of the object.
+ *
+ * A tier specification is a comma separated list of "<size>:<threads>" entries, for instance
+ * "64K:1,1G:4,:16". Objects smaller than the size of an entry use the threads of the first
+ * matching entry. An entry without a size matches all remaining objects. Sizes may have
+ * a K, M, G or T suffix (powers of 1024).
+ * Objects that do not match any entry use the default number of threads.
+ *
+ * @author ton
+ *
+ */
+public class TransferTiers {
+	private long[] limits;
+	private int[] threads;
+	private int defaultThreads;
+
+	/**
+	 * Creates tiers that use the same number of threads for all objects.
+	 */
+	public TransferTiers(int defaultThreads) {
+		this.limits = new long[0];
+		this.threads = new int[0];
+		this.defaultThreads = defaultThreads;
+	}
+
+	/**
+	 * @param spec	tier specification
+	 * @throws IllegalArgumentException if the specification cannot be parsed
+	 */
+	public TransferTiers(String spec, int defaultThreads) {
+		this.defaultThreads = defaultThreads;
+		List<long[]> tiers = new ArrayList<long[]>();
+		for (String entry : spec.split(",")) {
+			int colon = entry.indexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Tier '" + entry + "' lacks ':<threads>'");
+			}
+			String size = entry.substring(0, colon).trim();
+			long limit = size.isEmpty() ? Long.MAX_VALUE : parseSize(size);
+			int count = Integer.parseInt(entry.substring(colon + 1).trim());
+			if (count < 1) {
+				throw new IllegalArgumentException("Tier '" + entry + "' must use at least 1 thread");
+			}
+			tiers.add(new long[] {limit, count});
+		}
+		tiers.sort((a, b) -> Long.compare(a[0], b[0]));
+		limits = new long[tiers.size()];
+		threads = new int[tiers.size()];
+		for (int i = 0; i < limits.length; i++) {
+			limits[i] = tiers.get(i)[0];
+			threads[i] = (int) tiers.get(i)[1];
+		}
+	}
+
+	/**
+	 * @param size	size of a data object in bytes
+	 * @return number of parallel streams to transfer the object
+	 */
+	public int threadsFor(long size) {
+		for (int i = 0; i < limits.length; i++) {
+			if (size < limits[i]) {
+				return threads[i];
+			}
+		}
+		return defaultThreads;
+	}
+
+	private static long parseSize(String size) {
+		long unit = 1;
+		int exponent = "KMGT".indexOf(Character.toUpperCase(size.charAt(size.length() - 1)));
+		if (exponent >= 0) {
+			unit = 1L << (10 * exponent + 10);
+			size = size.substring(0, size.length() - 1);
+		}
+		return Long.parseLong(size.trim()) * unit;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < limits.length; i++) {
+			sb.append(limits[i] == Long.MAX_VALUE ? "" : String.valueOf(limits[i]));
+			sb.append(":" + threads[i] + ",");
+		}
+		sb.append("default:" + defaultThreads);
+		return sb.toString();
+	}
+
+}
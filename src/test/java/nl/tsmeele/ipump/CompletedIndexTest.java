@@ -0,0 +1,91 @@
+package nl.tsmeele.ipump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the heap of the CompletedIndex per entry, and checks membership
+ * and the merging of the steps journaled for an object.
+ *
+ * @author ton
+ *
+ */
+public class CompletedIndexTest {
+	// two longs of fingerprint and a step byte
+	private static final int BYTES_PER_ENTRY = 2 * Long.BYTES + 1;
+
+	private static String path(int i) {
+		return "/tempZone/home/research-test/dir" + (i % 1000) + "/file" + i + ".dat";
+	}
+
+	@Test
+	public void footprintAndMembership() {
+		int entries = Footprint.OBJECTS;
+		long before = Footprint.usedHeap();
+		CompletedIndex index = new CompletedIndex();
+		for (int i = 0; i < entries; i++) {
+			index.add(path(i));
+		}
+		index.seal();
+		double measured = Footprint.bytesPer(before, entries);
+		assertEquals(entries, index.size());
+		assertEquals(BYTES_PER_ENTRY, index.bytesPerEntry(), 0.001);
+		assertTrue(measured < 2 * BYTES_PER_ENTRY, "CompletedIndex uses " + measured + " bytes per entry");
+
+		for (int i = 0; i < entries; i += 997) {
+			assertTrue(index.contains(path(i)), "missing " + path(i));
+		}
+		// paths that were never added, including near misses
+		for (int i = entries; i < entries + 1000; i++) {
+			assertFalse(index.contains(path(i)));
+			assertEquals(CompletedIndex.NONE, index.stepOf(path(i)));
+		}
+		assertFalse(index.contains(path(0) + "/"));
+		assertFalse(index.contains(path(0).toUpperCase()));
+	}
+
+	@Test
+	public void stepsOfAnObjectAreMerged() {
+		CompletedIndex index = new CompletedIndex();
+		index.add("/zone/a", (byte) Precondition.EXISTS.ordinal());
+		index.add("/zone/a", (byte) Precondition.AVU_ADDED.ordinal());
+		index.add("/zone/a", (byte) Precondition.ADMIN_HAS_ACCESS.ordinal());
+		index.add("/zone/b", (byte) Precondition.AVU_ADDED.ordinal());
+		index.add("/zone/b");
+		index.add("/zone/b", (byte) Precondition.EXISTS.ordinal());
+		index.add("/zone/c", (byte) Precondition.EXISTS.ordinal());
+		index.seal();
+		assertEquals(3, index.size());
+		// the highest step wins, regardless of the order in which the steps were journaled
+		assertEquals(Precondition.AVU_ADDED.ordinal(), index.stepOf("/zone/a"));
+		assertFalse(index.contains("/zone/a"));
+		assertEquals(CompletedIndex.DONE, index.stepOf("/zone/b"));
+		assertTrue(index.contains("/zone/b"));
+		assertEquals(Precondition.EXISTS.ordinal(), index.stepOf("/zone/c"));
+		assertEquals(CompletedIndex.NONE, index.stepOf("/zone/d"));
+	}
+
+	@Test
+	public void stepsAreMergedWhenTheIndexRunsOutOfCapacity() {
+		CompletedIndex index = new CompletedIndex();
+		// each object is journaled once per step, interleaved with other objects
+		int objects = 5000;
+		for (Precondition step : Precondition.values()) {
+			for (int i = 0; i < objects; i++) {
+				index.add(path(i), (byte) step.ordinal());
+			}
+		}
+		for (int i = 0; i < objects; i += 2) {
+			index.add(path(i));
+		}
+		index.seal();
+		assertEquals(objects, index.size());
+		for (int i = 0; i < objects; i++) {
+			assertEquals(i % 2 == 0 ? CompletedIndex.DONE : (byte) Precondition.REPUBLISHED.ordinal(), index.stepOf(path(i)));
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+package nl.tsmeele.ipump;
+
+/**
+ * Footprint measures the heap retained by a structure, for the tests that bound the
+ * heap per object. The default size fits the heap of a unit-test run, the benchmark
+ * profile measures at a larger size (property footprint.objects).
+ *
+ * @author ton
+ *
+ */
+final class Footprint {
+	static final int OBJECTS = Integer.getInteger("footprint.objects", 1000000);
+
+	private Footprint() {
+	}
+
+	/**
+	 * @param before	heap in use before the structure was built
+	 * @param count		number of objects held by the structure
+	 * @return heap retained by the structure per object, in bytes
+	 */
+	static double bytesPer(long before, int count) {
+		return (double) (usedHeap() - before) / count;
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		// a few rounds, so that garbage of the build has been collected
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
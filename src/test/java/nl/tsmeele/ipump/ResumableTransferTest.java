@@ -0,0 +1,53 @@
+package nl.tsmeele.ipump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the resume offset and the split of a transfer into rounds and a last chunk
+ * at the round boundaries.
+ *
+ * @author ton
+ *
+ */
+public class ResumableTransferTest {
+	private static final long R = ResumableTransfer.ROUND_BYTES;
+	private static final long CHUNK = 8L * 1024 * 1024;
+	private static final long[] BOUNDARIES = {0, R - 1, R, R + 1, 2 * R};
+
+	@Test
+	public void resumeOffsetAtBoundaries() {
+		assertEquals(0, ResumableTransfer.resumeOffset(0));
+		assertEquals(0, ResumableTransfer.resumeOffset(R - 1));
+		// a destination of exactly one round may hold an incomplete round
+		assertEquals(0, ResumableTransfer.resumeOffset(R));
+		assertEquals(R, ResumableTransfer.resumeOffset(R + 1));
+		assertEquals(R, ResumableTransfer.resumeOffset(2 * R));
+		assertEquals(2 * R, ResumableTransfer.resumeOffset(2 * R + 1));
+	}
+
+	@Test
+	public void roundsAndTailAtBoundaries() {
+		for (long size : BOUNDARIES) {
+			long end = ResumableTransfer.tailStart(size, 0, CHUNK);
+			assertEquals(Math.max(0, size - CHUNK), end, "tail start of size " + size);
+			long position = 0;
+			while (position < end) {
+				long roundEnd = ResumableTransfer.roundEnd(position, end);
+				assertTrue(roundEnd > position, "empty round at " + position + " of size " + size);
+				// rounds are aligned on multiples of R, only the round before the tail may be shorter
+				assertEquals(0, position % R);
+				assertTrue(roundEnd % R == 0 || roundEnd == end, "unaligned round end " + roundEnd + " of size " + size);
+				position = roundEnd;
+			}
+			assertEquals(end, position, "rounds of size " + size + " end at the last chunk");
+		}
+		// a resumed transfer continues with the remaining rounds
+		assertEquals(2 * R, ResumableTransfer.roundEnd(R, 3 * R - CHUNK));
+		assertEquals(2 * R - CHUNK, ResumableTransfer.tailStart(2 * R, R, CHUNK));
+		assertEquals(R, ResumableTransfer.tailStart(R + 1, R, CHUNK));
+	}
+
+}
@@ -0,0 +1,124 @@
+package nl.tsmeele.ipump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the heap per blocked object of the TaskGraph against the baseline design,
+ * and checks the order in which blocked tasks are released.
+ *
+ * @author ton
+ *
+ */
+public class TaskGraphTest {
+	// graph and task together, per blocked object
+	private static final int MAX_BYTES_PER_OBJECT = 80;
+
+	/**
+	 * Task of the baseline design, its precondition is the path of the object prefixed with the kind.
+	 */
+	private static class BaselineTask {
+		Object clientUser = null;
+		boolean runAsAgent = false;
+		String taskPrecondition;
+		Object context = null;
+
+		BaselineTask(String precondition) {
+			this.taskPrecondition = precondition;
+		}
+	}
+
+	private static Task task(int objId) {
+		return new Task(null, false, Precondition.EXISTS.key(objId), objId) {
+			@Override
+			public Boolean call() {
+				return null;
+			}
+		};
+	}
+
+	private static String path(int objId) {
+		return "/tempZone/home/research-test/dir" + (objId % 1000) + "/file" + objId + ".dat";
+	}
+
+	@Test
+	public void footprintAgainstBaseline() {
+		int objects = Footprint.OBJECTS;
+		// blocked tasks keyed on precondition strings, one queue per key
+		long before = Footprint.usedHeap();
+		HashMap<String, Queue<BaselineTask>> baselineGraph = new HashMap<String, Queue<BaselineTask>>(100000);
+		for (int objId = 0; objId < objects; objId++) {
+			BaselineTask task = new BaselineTask("ADMIN:" + path(objId));
+			Queue<BaselineTask> tasks = new ConcurrentLinkedQueue<BaselineTask>();
+			tasks.add(task);
+			baselineGraph.put(task.taskPrecondition, tasks);
+		}
+		double baseline = Footprint.bytesPer(before, objects);
+		assertEquals(objects, baselineGraph.size());
+		baselineGraph = null;
+
+		// same start capacity as the scheduler, the graph grows as needed
+		before = Footprint.usedHeap();
+		TaskGraph graph = new TaskGraph(100000);
+		for (int objId = 0; objId < objects; objId++) {
+			assertEquals(TaskGraph.BLOCKED, graph.add(Precondition.EXISTS.key(objId), task(objId)));
+		}
+		double compact = Footprint.bytesPer(before, objects);
+		assertEquals(objects, graph.size());
+		assertTrue(compact < MAX_BYTES_PER_OBJECT, "TaskGraph uses " + compact + " bytes per blocked object");
+		assertTrue(compact * 3 < baseline, "TaskGraph uses " + compact + " bytes per blocked object, baseline " + baseline);
+	}
+
+	@Test
+	public void tasksAreReleasedInOrderOfAddition() {
+		TaskGraph graph = new TaskGraph(16);
+		long key = Precondition.EXISTS.key(1);
+		Task first = task(2);
+		Task second = task(3);
+		graph.add(key, first);
+		graph.add(key, second);
+		assertEquals(1, graph.size());
+		Task released = graph.mark(key, TaskGraph.RELEASED);
+		assertSame(first, released);
+		assertSame(second, released.next);
+		assertNull(second.next);
+		assertEquals(0, graph.size());
+		// a task added after the key has been released is not blocked
+		assertEquals(TaskGraph.RELEASED, graph.add(key, task(4)));
+		// a marked key keeps its original mark
+		assertNull(graph.mark(key, TaskGraph.FAILED));
+		assertEquals(TaskGraph.RELEASED, graph.add(key, task(5)));
+	}
+
+	@Test
+	public void removedKeysCanBeFoundAfterCollisions() {
+		TaskGraph graph = new TaskGraph(16);
+		Task[] tasks = new Task[10000];
+		for (int objId = 0; objId < tasks.length; objId++) {
+			tasks[objId] = task(objId);
+			graph.add(Precondition.EXISTS.key(objId), tasks[objId]);
+		}
+		// removing every other key shifts the remaining entries of each probe sequence
+		for (int objId = 0; objId < tasks.length; objId += 2) {
+			assertSame(tasks[objId], graph.remove(Precondition.EXISTS.key(objId)));
+		}
+		for (int objId = 0; objId < tasks.length; objId++) {
+			Task removed = graph.remove(Precondition.EXISTS.key(objId));
+			if (objId % 2 == 0) {
+				assertNull(removed);
+			} else {
+				assertSame(tasks[objId], removed);
+			}
+		}
+		assertEquals(0, graph.size());
+	}
+
+}